@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named threads running at {@link Process#THREAD_PRIORITY_BACKGROUND},
+ * so that work fanned out to a pool doesn't compete with the UI thread.
+ */
+public class BackgroundThreadFactory implements ThreadFactory {
+    /** How long idle pool threads are kept around. */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String mName;
+    private final AtomicInteger mCount = new AtomicInteger(1);
+
+    public BackgroundThreadFactory(String name) {
+        mName = name;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }
+        }, mName + " #" + mCount.getAndIncrement());
+    }
+
+    /**
+     * Return a pool of at most the given number of background threads,
+     * which exit once idle, for sharing between all users of a class.
+     */
+    public static ExecutorService newPool(String name, int threads) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new BackgroundThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
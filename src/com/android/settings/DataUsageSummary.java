@@ -138,6 +138,8 @@ import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.SummaryForAllUidCache;
+import com.android.settings.net.SummaryForAllUidIndex;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
@@ -147,6 +149,7 @@ import com.android.settings.widget.PieChartView;
 import com.google.android.collect.Lists;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
@@ -191,12 +194,21 @@ public class DataUsageSummary extends Fragment {
     private static final int LOADER_CHART_DATA = 2;
     private static final int LOADER_SUMMARY = 3;
 
+    /** Quiet time after the inspection sweep moved before its range is queried. */
+    private static final long DELAY_INSPECT_QUERY = 250;
+
     private INetworkManagementService mNetworkService;
     private INetworkStatsService mStatsService;
     private NetworkPolicyManager mPolicyManager;
     private ConnectivityManager mConnService;
 
     private INetworkStatsSession mStatsSession;
+    private SummaryForAllUidCache mSummaryCache;
+
+    /** Per-UID usage of the current cycle, answering the sweep while it's dragged. */
+    private SummaryForAllUidIndex mSummaryIndex;
+    private AsyncTask<Void, Void, SummaryForAllUidIndex> mSummaryIndexTask;
+    private int[] mRestrictedUids = new int[0];
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -288,6 +300,7 @@ public class DataUsageSummary extends Fragment {
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
+        mSummaryCache = new SummaryForAllUidCache(mStatsSession);
 
         mShowWifi = mPrefs.getBoolean(PREF_SHOW_WIFI, false);
         mShowEthernet = mPrefs.getBoolean(PREF_SHOW_ETHERNET, false);
@@ -418,6 +431,10 @@ public class DataUsageSummary extends Fragment {
         final Intent intent = getActivity().getIntent();
         mIntentTab = computeTabFromIntent(intent);
 
+        // usage may have grown while we were paused
+        mSummaryCache.invalidateOpen();
+        mSummaryIndex = null;
+
         // this kicks off chain reaction which creates tabs, binds the body to
         // selected network, and binds chart, cycles and detail list.
         updateTabs();
@@ -439,6 +456,8 @@ public class DataUsageSummary extends Fragment {
             @Override
             protected void onPostExecute(Void result) {
                 if (isAdded()) {
+                    mSummaryCache.invalidateOpen();
+                    mSummaryIndex = null;
                     updateBody();
                 }
             }
@@ -571,14 +590,29 @@ public class DataUsageSummary extends Fragment {
         return false;
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        // don't leave policy changes waiting behind the write delay
+        mPolicyEditor.flush();
+    }
+
     @Override
     public void onDestroy() {
         mDataEnabledView = null;
         mDisableAtLimitView = null;
 
         mUidDetailProvider.clearCache();
+        mUidDetailProvider.close();
         mUidDetailProvider = null;
 
+        mChart.removeCallbacks(mInspectSettled);
+        if (mSummaryIndexTask != null) {
+            mSummaryIndexTask.cancel(true);
+            mSummaryIndexTask = null;
+        }
+        mSummaryCache.close();
         TrafficStats.closeQuietly(mStatsSession);
 
         if (this.isRemoving()) {
@@ -1211,7 +1245,19 @@ public class DataUsageSummary extends Fragment {
      * app details.
      */
     private void updateDetailData() {
-        if (LOGD) Log.d(TAG, "updateDetailData()");
+        updateDetailData(false);
+    }
+
+    /**
+     * Bind the detail area to the current inspection range.
+     *
+     * @param dragging when the inspection sweep is still moving. The app list
+     *            is then answered from {@link #mSummaryIndex} when possible,
+     *            and the stats service is only asked once the sweep rests.
+     */
+    private void updateDetailData(boolean dragging) {
+        if (LOGD) Log.d(TAG, "updateDetailData() dragging=" + dragging);
+        mChart.removeCallbacks(mInspectSettled);
 
         final long start = mChart.getInspectStart();
         final long end = mChart.getInspectEnd();
@@ -1248,9 +1294,25 @@ public class DataUsageSummary extends Fragment {
                 entry = mChartData.network.getValues(start, end, now, null);
             }
 
-            // kick off loader for detailed stats
-            getLoaderManager().restartLoader(LOADER_SUMMARY,
-                    SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
+            if (dragging) {
+                // whatever is in flight is for a range we already left
+                final Loader<NetworkStats> loader = getLoaderManager().getLoader(LOADER_SUMMARY);
+                if (loader != null) loader.cancelLoad();
+
+                if (mSummaryIndex != null && mSummaryIndex.covers(mTemplate, start, end)) {
+                    // rows still ask for details they miss, but resolving
+                    // the whole list waits for the sweep to settle
+                    bindSummary(mSummaryIndex.getSummary(start, end), mRestrictedUids, false);
+                } else {
+                    buildSummaryIndex();
+                }
+                mChart.postDelayed(mInspectSettled, DELAY_INSPECT_QUERY);
+            } else {
+                // kick off loader for detailed stats
+                getLoaderManager().restartLoader(LOADER_SUMMARY,
+                        SummaryForAllUidLoader.buildArgs(mTemplate, start, end),
+                        mSummaryCallbacks);
+            }
         }
 
         final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
@@ -1271,11 +1333,25 @@ public class DataUsageSummary extends Fragment {
         ensureLayoutTransitions();
     }
 
+    private final ChartDataLoader.ProgressListener mChartDataProgressListener =
+            new ChartDataLoader.ProgressListener() {
+        @Override
+        public void onChartDataProgress(ChartData partial, int loaded, int total) {
+            if (LOGD) Log.d(TAG, "loaded history for " + loaded + " of " + total + " uids");
+
+            // draw what has been merged so far; the final result replaces it
+            mChart.bindNetworkStats(partial.network);
+            mChart.bindDetailNetworkStats(partial.detail);
+        }
+    };
+
     private final LoaderCallbacks<ChartData> mChartDataCallbacks = new LoaderCallbacks<
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            final ChartDataLoader loader = new ChartDataLoader(getActivity(), mStatsSession, args);
+            loader.setProgressListener(mChartDataProgressListener);
+            return loader;
         }
 
         @Override
@@ -1306,29 +1382,96 @@ public class DataUsageSummary extends Fragment {
             NetworkStats>() {
         @Override
         public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
-            return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
+            return new SummaryForAllUidLoader(getActivity(), mStatsSession, mSummaryCache, args);
         }
 
         @Override
         public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
+            mRestrictedUids = mPolicyManager.getUidsWithPolicy(
                     POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedUids);
-            updateEmptyVisible();
+            bindSummary(data, mRestrictedUids, true);
+            prefetchNeighborCycles();
         }
 
         @Override
         public void onLoaderReset(Loader<NetworkStats> loader) {
-            mAdapter.bindStats(null, new int[0]);
-            updateEmptyVisible();
+            bindSummary(null, new int[0], false);
         }
+    };
+
+    private void bindSummary(NetworkStats stats, int[] restrictedUids, boolean prefetch) {
+        mAdapter.bindStats(stats, restrictedUids, prefetch);
+        final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
+        mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+    }
 
-        private void updateEmptyVisible() {
-            final boolean isEmpty = mAdapter.isEmpty() && !isAppDetailMode();
-            mEmpty.setVisibility(isEmpty ? View.VISIBLE : View.GONE);
+    private final Runnable mInspectSettled = new Runnable() {
+        @Override
+        public void run() {
+            updateDetailData();
         }
     };
 
+    /**
+     * Start building {@link #mSummaryIndex} for the selected cycle in the
+     * background, unless already underway.
+     */
+    private void buildSummaryIndex() {
+        if (mSummaryIndexTask != null) return;
+        final Object selected = mCycleSpinner.getSelectedItem();
+        if (!(selected instanceof CycleItem) || selected instanceof CycleChangeItem) return;
+
+        final NetworkTemplate template = mTemplate;
+        final long start = ((CycleItem) selected).start;
+        final long end = ((CycleItem) selected).end;
+        mSummaryIndexTask = new AsyncTask<Void, Void, SummaryForAllUidIndex>() {
+            @Override
+            protected SummaryForAllUidIndex doInBackground(Void... params) {
+                try {
+                    // usually cached since the cycle was selected
+                    final NetworkStats cycleSummary = mSummaryCache.getSummaryForAllUid(
+                            template, start, end);
+                    return SummaryForAllUidIndex.build(
+                            mStatsSession, template, start, end, cycleSummary);
+                } catch (RemoteException e) {
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(SummaryForAllUidIndex result) {
+                mSummaryIndexTask = null;
+                if (result != null && isAdded()) {
+                    mSummaryIndex = result;
+                }
+            }
+        };
+        mSummaryIndexTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Warm {@link #mSummaryCache} with the cycles on either side of the one
+     * currently selected, so that stepping through them is served from
+     * memory.
+     */
+    private void prefetchNeighborCycles() {
+        final int position = mCycleSpinner.getSelectedItemPosition();
+        if (position == AdapterView.INVALID_POSITION) return;
+
+        final long[] ranges = new long[4];
+        int count = 0;
+        for (int i = position - 1; i <= position + 1; i += 2) {
+            if (i < 0 || i >= mCycleAdapter.getCount()) continue;
+            final CycleItem item = mCycleAdapter.getItem(i);
+            if (item instanceof CycleChangeItem) continue;
+            ranges[count++] = item.start;
+            ranges[count++] = item.end;
+        }
+        if (count > 0) {
+            mSummaryCache.prefetch(mTemplate, Arrays.copyOf(ranges, count));
+        }
+    }
+
     @Deprecated
     private boolean isMobilePolicySplit() {
         final Context context = getActivity();
@@ -1360,6 +1503,11 @@ public class DataUsageSummary extends Fragment {
     }
 
     private DataUsageChartListener mChartListener = new DataUsageChartListener() {
+        @Override
+        public void onInspectRangeChanging() {
+            updateDetailData(true);
+        }
+
         @Override
         public void onInspectRangeChanged() {
             if (LOGD) Log.d(TAG, "onInspectRangeChanged()");
@@ -1558,6 +1706,13 @@ public class DataUsageSummary extends Fragment {
         private ArrayList<AppItem> mItems = Lists.newArrayList();
         private long mLargest;
 
+        private final Runnable mDetailsLoaded = new Runnable() {
+            @Override
+            public void run() {
+                notifyDataSetChanged();
+            }
+        };
+
         public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
@@ -1565,8 +1720,10 @@ public class DataUsageSummary extends Fragment {
 
         /**
          * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * When prefetch is set, details of every row are resolved in the
+         * background; otherwise only those of rows as they're bound.
          */
-        public void bindStats(NetworkStats stats, int[] restrictedUids) {
+        public void bindStats(NetworkStats stats, int[] restrictedUids, boolean prefetch) {
             mItems.clear();
 
             final int currentUserId = ActivityManager.getCurrentUser();
@@ -1619,6 +1776,15 @@ public class DataUsageSummary extends Fragment {
             Collections.sort(mItems);
             mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
             notifyDataSetChanged();
+            if (!prefetch) return;
+
+            // resolve all labels and icons in one background pass, instead
+            // of one task for each row as it's bound
+            final int[] keys = new int[mItems.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = mItems.get(i).key;
+            }
+            mProvider.prefetch(keys, mDetailsLoaded);
         }
 
         @Override
@@ -1653,9 +1819,14 @@ public class DataUsageSummary extends Fragment {
             final ProgressBar progress = (ProgressBar) convertView.findViewById(
                     android.R.id.progress);
 
-            // kick off async load of app details
+            // bind app details if already resolved, otherwise ask for them
+            // again, since they may have been evicted since the prefetch
             final AppItem item = mItems.get(position);
-            UidDetailTask.bindView(mProvider, item, convertView);
+            final UidDetail detail = mProvider.getUidDetail(item.key, false);
+            if (detail == null) {
+                mProvider.request(item.key, mDetailsLoaded);
+            }
+            bindDetail(detail, convertView);
 
             if (item.restricted && item.total <= 0) {
                 text1.setText(R.string.data_usage_app_restricted);
@@ -1670,6 +1841,19 @@ public class DataUsageSummary extends Fragment {
 
             return convertView;
         }
+
+        private static void bindDetail(UidDetail detail, View target) {
+            final ImageView icon = (ImageView) target.findViewById(android.R.id.icon);
+            final TextView title = (TextView) target.findViewById(android.R.id.title);
+
+            if (detail != null) {
+                icon.setImageDrawable(detail.icon);
+                title.setText(detail.label);
+            } else {
+                icon.setImageDrawable(null);
+                title.setText(null);
+            }
+        }
     }
 
     /**
@@ -2217,66 +2401,6 @@ public class DataUsageSummary extends Fragment {
         }
     }
 
-    /**
-     * Background task that loads {@link UidDetail}, binding to
-     * {@link DataUsageAdapter} row item when finished.
-     */
-    private static class UidDetailTask extends AsyncTask<Void, Void, UidDetail> {
-        private final UidDetailProvider mProvider;
-        private final AppItem mItem;
-        private final View mTarget;
-
-        private UidDetailTask(UidDetailProvider provider, AppItem item, View target) {
-            mProvider = checkNotNull(provider);
-            mItem = checkNotNull(item);
-            mTarget = checkNotNull(target);
-        }
-
-        public static void bindView(
-                UidDetailProvider provider, AppItem item, View target) {
-            final UidDetailTask existing = (UidDetailTask) target.getTag();
-            if (existing != null) {
-                existing.cancel(false);
-            }
-
-            final UidDetail cachedDetail = provider.getUidDetail(item.key, false);
-            if (cachedDetail != null) {
-                bindView(cachedDetail, target);
-            } else {
-                target.setTag(new UidDetailTask(provider, item, target).executeOnExecutor(
-                        AsyncTask.THREAD_POOL_EXECUTOR));
-            }
-        }
-
-        private static void bindView(UidDetail detail, View target) {
-            final ImageView icon = (ImageView) target.findViewById(android.R.id.icon);
-            final TextView title = (TextView) target.findViewById(android.R.id.title);
-
-            if (detail != null) {
-                icon.setImageDrawable(detail.icon);
-                title.setText(detail.label);
-            } else {
-                icon.setImageDrawable(null);
-                title.setText(null);
-            }
-        }
-
-        @Override
-        protected void onPreExecute() {
-            bindView(null, mTarget);
-        }
-
-        @Override
-        protected UidDetail doInBackground(Void... params) {
-            return mProvider.getUidDetail(mItem.key, true);
-        }
-
-        @Override
-        protected void onPostExecute(UidDetail result) {
-            bindView(result, mTarget);
-        }
-    }
-
     /**
      * Test if device has a mobile data radio with subscription in ready state.
      */
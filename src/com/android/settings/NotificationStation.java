@@ -34,10 +34,13 @@ import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.UserHandle;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -49,7 +52,9 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 
 public class NotificationStation extends SettingsPreferenceFragment {
@@ -57,44 +62,82 @@ public class NotificationStation extends SettingsPreferenceFragment {
     static final boolean DEBUG = true;
     private static final String PACKAGE_SCHEME = "package";
     private static final boolean SHOW_HISTORICAL_NOTIFICATIONS = true;
+    private static final int MAX_HISTORICAL = 50;
+    private static final int MAX_CACHED_ICONS = 64;
+    private static final int MAX_CACHED_LABELS = 64;
 
     private final PackageReceiver mPackageReceiver = new PackageReceiver();
     private PackageManager mPm;
     private INotificationManager mNoMan;
 
-    private Runnable mRefreshListRunnable = new Runnable() {
-        @Override
-        public void run() {
-            refreshList();
-        }
-    };
+    // The history is loaded and every event is resolved on mBackgroundHandler,
+    // one at a time, and the results are applied to the list on mHandler.
+    private final Handler mHandler = new Handler();
+    private HandlerThread mBackgroundThread;
+    private Handler mBackgroundHandler;
+
+    // Icons by package, user and resource id, where id 0 is the app icon.
+    private final LruCache<String, Drawable> mIconCache =
+            new LruCache<String, Drawable>(MAX_CACHED_ICONS);
+    private final LruCache<String, CharSequence> mLabelCache =
+            new LruCache<String, CharSequence>(MAX_CACHED_LABELS);
 
     private INotificationListener.Stub mListener = new INotificationListener.Stub() {
         @Override
-        public void onNotificationPosted(StatusBarNotification notification) throws RemoteException {
+        public void onNotificationPosted(final StatusBarNotification notification)
+                throws RemoteException {
             Log.v(TAG, "onNotificationPosted: " + notification);
-            final Handler h = getListView().getHandler();
-            h.removeCallbacks(mRefreshListRunnable);
-            h.postDelayed(mRefreshListRunnable, 100);
+            postBackground(new Runnable() {
+                @Override
+                public void run() {
+                    final HistoricalNotificationInfo info = loadNotification(notification,
+                            true, ActivityManager.getCurrentUser());
+                    if (info == null) return;
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            applyPosted(info);
+                        }
+                    });
+                }
+            });
         }
 
         @Override
-        public void onNotificationRemoved(StatusBarNotification notification) throws RemoteException {
-            final Handler h = getListView().getHandler();
-            h.removeCallbacks(mRefreshListRunnable);
-            h.postDelayed(mRefreshListRunnable, 100);
+        public void onNotificationRemoved(StatusBarNotification notification)
+                throws RemoteException {
+            final String key = getKey(notification);
+            // through the background thread, so it can't overtake its post
+            postBackground(new Runnable() {
+                @Override
+                public void run() {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            applyRemoved(key);
+                        }
+                    });
+                }
+            });
         }
     };
 
     private NotificationHistoryAdapter mAdapter;
     private Context mContext;
 
+    // Rows of notifications still showing, by key.
+    private final HashMap<String, HistoricalNotificationInfo> mActive =
+            new HashMap<String, HistoricalNotificationInfo>();
+    private int mHistoricalCount;
+
     private final Comparator<HistoricalNotificationInfo> mNotificationSorter
             = new Comparator<HistoricalNotificationInfo>() {
                 @Override
                 public int compare(HistoricalNotificationInfo lhs,
                                    HistoricalNotificationInfo rhs) {
-                    return (int)(rhs.timestamp - lhs.timestamp);
+                    // newest first
+                    return lhs.timestamp < rhs.timestamp ? 1
+                            : (lhs.timestamp > rhs.timestamp ? -1 : 0);
                 }
             };
 
@@ -106,6 +149,9 @@ public class NotificationStation extends SettingsPreferenceFragment {
         mPm = mContext.getPackageManager();
         mNoMan = INotificationManager.Stub.asInterface(
                 ServiceManager.getService(Context.NOTIFICATION_SERVICE));
+        mBackgroundThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mBackgroundThread.start();
+        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
         try {
             mNoMan.registerListener(mListener,
                     new ComponentName(mContext.getPackageName(),
@@ -116,6 +162,20 @@ public class NotificationStation extends SettingsPreferenceFragment {
         }
     }
 
+    @Override
+    public void onDetach() {
+        logd("onDetach()");
+        super.onDetach();
+        try {
+            mNoMan.unregisterListener(mListener, ActivityManager.getCurrentUser());
+        } catch (RemoteException e) {
+        }
+        synchronized (this) {
+            mBackgroundThread.quit();
+            mBackgroundHandler = null;
+        }
+    }
+
     @Override
     public void onCreate(Bundle icicle) {
         logd("onCreate(%s)", icicle);
@@ -141,6 +201,23 @@ public class NotificationStation extends SettingsPreferenceFragment {
 
         mAdapter = new NotificationHistoryAdapter(mContext);
         listView.setAdapter(mAdapter);
+
+        // load what happened before we were listening; later changes arrive
+        // through mListener
+        postBackground(new Runnable() {
+            @Override
+            public void run() {
+                final List<HistoricalNotificationInfo> infos = loadNotifications();
+                if (infos == null) return;
+                Collections.sort(infos, mNotificationSorter);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        bindList(infos);
+                    }
+                });
+            }
+        });
     }
 
     @Override
@@ -154,7 +231,6 @@ public class NotificationStation extends SettingsPreferenceFragment {
     public void onResume() {
         logd("onResume()");
         super.onResume();
-        refreshList();
 
         // listen for package changes
         IntentFilter filter = new IntentFilter();
@@ -166,14 +242,77 @@ public class NotificationStation extends SettingsPreferenceFragment {
         mContext.registerReceiver(mPackageReceiver , filter);
     }
 
-    private void refreshList() {
-        List<HistoricalNotificationInfo> infos = loadNotifications();
-        if (infos != null) {
-            logd("adding %d infos", infos.size());
-            mAdapter.clear();
-            mAdapter.addAll(infos);
-            mAdapter.sort(mNotificationSorter);
+    private synchronized void postBackground(Runnable r) {
+        if (mBackgroundHandler != null) {
+            mBackgroundHandler.post(r);
+        }
+    }
+
+    /**
+     * Replace the list with the given infos, already sorted.
+     */
+    private void bindList(List<HistoricalNotificationInfo> infos) {
+        logd("adding %d infos", infos.size());
+        mActive.clear();
+        mHistoricalCount = 0;
+        for (HistoricalNotificationInfo info : infos) {
+            if (info.active) {
+                mActive.put(info.key, info);
+            } else {
+                mHistoricalCount++;
+            }
+        }
+        mAdapter.setNotifyOnChange(false);
+        mAdapter.clear();
+        mAdapter.addAll(infos);
+        mAdapter.notifyDataSetChanged();
+    }
+
+    private void applyPosted(HistoricalNotificationInfo info) {
+        if (mAdapter == null) return;
+        final HistoricalNotificationInfo old = mActive.put(info.key, info);
+        mAdapter.setNotifyOnChange(false);
+        if (old != null) {
+            mAdapter.remove(old);
+        }
+
+        // find the first row older than this one
+        int low = 0;
+        int high = mAdapter.getCount();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mNotificationSorter.compare(mAdapter.getItem(mid), info) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        mAdapter.insert(info, low);
+        mAdapter.notifyDataSetChanged();
+    }
+
+    private void applyRemoved(String key) {
+        if (mAdapter == null) return;
+        final HistoricalNotificationInfo info = mActive.remove(key);
+        if (info == null) return;
+        info.active = false;
+        mHistoricalCount++;
+
+        // drop the oldest dismissed rows beyond what the service keeps
+        mAdapter.setNotifyOnChange(false);
+        for (int i = mAdapter.getCount() - 1; i >= 0 && mHistoricalCount > MAX_HISTORICAL; i--) {
+            final HistoricalNotificationInfo row = mAdapter.getItem(i);
+            if (!row.active) {
+                mAdapter.remove(row);
+                mHistoricalCount--;
+            }
         }
+        mAdapter.notifyDataSetChanged();
+    }
+
+    private static String getKey(StatusBarNotification sbn) {
+        return sbn.getUserId() + "|" + sbn.getPackageName() + "|" + sbn.getId() + "|"
+                + sbn.getTag();
     }
 
     private static void logd(String msg, Object... args) {
@@ -182,6 +321,7 @@ public class NotificationStation extends SettingsPreferenceFragment {
     }
 
     private static class HistoricalNotificationInfo {
+        public String key;
         public String pkg;
         public Drawable pkgicon;
         public CharSequence pkgname;
@@ -197,7 +337,8 @@ public class NotificationStation extends SettingsPreferenceFragment {
         final int currentUserId = ActivityManager.getCurrentUser();
         try {
             StatusBarNotification[] active = mNoMan.getActiveNotifications(mContext.getPackageName());
-            StatusBarNotification[] dismissed = mNoMan.getHistoricalNotifications(mContext.getPackageName(), 50);
+            StatusBarNotification[] dismissed = mNoMan.getHistoricalNotifications(
+                    mContext.getPackageName(), MAX_HISTORICAL);
 
             List<HistoricalNotificationInfo> list
                     = new ArrayList<HistoricalNotificationInfo>(active.length + dismissed.length);
@@ -205,33 +346,9 @@ public class NotificationStation extends SettingsPreferenceFragment {
             for (StatusBarNotification[] resultset
                     : new StatusBarNotification[][] { active, dismissed }) {
                 for (StatusBarNotification sbn : resultset) {
-                    final HistoricalNotificationInfo info = new HistoricalNotificationInfo();
-                    info.pkg = sbn.getPackageName();
-                    info.user = sbn.getUserId();
-                    info.icon = loadIconDrawable(info.pkg, info.user, sbn.getNotification().icon);
-                    info.pkgicon = loadPackageIconDrawable(info.pkg, info.user);
-                    info.pkgname = loadPackageName(info.pkg);
-                    if (sbn.getNotification().extras != null) {
-                        info.title = sbn.getNotification().extras.getString(Notification.EXTRA_TITLE);
-                        if (info.title == null || "".equals(info.title)) {
-                            info.title = sbn.getNotification().extras.getString(Notification.EXTRA_TEXT);
-                        }
-                    }
-                    if (info.title == null || "".equals(info.title)) {
-                        info.title = sbn.getNotification().tickerText;
-                    }
-                    // still nothing? come on, give us something!
-                    if (info.title == null || "".equals(info.title)) {
-                        info.title = info.pkgname;
-                    }
-                    info.timestamp = sbn.getPostTime();
-                    info.priority = sbn.getNotification().priority;
-                    logd("   [%d] %s: %s", info.timestamp, info.pkg, info.title);
-
-                    info.active = (resultset == active);
-
-                    if (info.user == UserHandle.USER_ALL
-                            || info.user == currentUserId) {
+                    final HistoricalNotificationInfo info = loadNotification(sbn,
+                            resultset == active, currentUserId);
+                    if (info != null) {
                         list.add(info);
                     }
                 }
@@ -244,6 +361,57 @@ public class NotificationStation extends SettingsPreferenceFragment {
         return null;
     }
 
+    /**
+     * Build the row for the given notification, or return null when it
+     * belongs to another user.  Resolves icons and labels, so call off the
+     * main thread.
+     */
+    private HistoricalNotificationInfo loadNotification(StatusBarNotification sbn,
+            boolean active, int currentUserId) {
+        final HistoricalNotificationInfo info = new HistoricalNotificationInfo();
+        info.key = getKey(sbn);
+        info.pkg = sbn.getPackageName();
+        info.user = sbn.getUserId();
+        if (info.user != UserHandle.USER_ALL && info.user != currentUserId) {
+            return null;
+        }
+        info.icon = loadIconDrawable(info.pkg, info.user, sbn.getNotification().icon);
+        info.pkgicon = loadPackageIconDrawable(info.pkg, info.user);
+        info.pkgname = loadPackageName(info.pkg);
+        if (sbn.getNotification().extras != null) {
+            info.title = sbn.getNotification().extras.getString(Notification.EXTRA_TITLE);
+            if (info.title == null || "".equals(info.title)) {
+                info.title = sbn.getNotification().extras.getString(Notification.EXTRA_TEXT);
+            }
+        }
+        if (info.title == null || "".equals(info.title)) {
+            info.title = sbn.getNotification().tickerText;
+        }
+        // still nothing? come on, give us something!
+        if (info.title == null || "".equals(info.title)) {
+            info.title = info.pkgname;
+        }
+        info.timestamp = sbn.getPostTime();
+        info.priority = sbn.getNotification().priority;
+        logd("   [%d] %s: %s", info.timestamp, info.pkg, info.title);
+
+        info.active = active;
+        return info;
+    }
+
+    private static String getIconKey(String pkg, int userId, int resId) {
+        return pkg + "|" + userId + "|" + resId;
+    }
+
+    /**
+     * Rows get their own copy of a cached icon, since a {@link Drawable}
+     * keeps the bounds and callback of the view showing it.
+     */
+    private static Drawable newIcon(Drawable cached) {
+        final Drawable.ConstantState state = cached.getConstantState();
+        return state != null ? state.newDrawable() : cached;
+    }
+
     private Resources getResourcesForUserPackage(String pkg, int userId) {
         Resources r = null;
 
@@ -264,34 +432,54 @@ public class NotificationStation extends SettingsPreferenceFragment {
     }
 
     private Drawable loadPackageIconDrawable(String pkg, int userId) {
-        Drawable icon = null;
+        final String key = getIconKey(pkg, userId, 0);
+        Drawable icon = mIconCache.get(key);
+        if (icon != null) return newIcon(icon);
+
         try {
             icon = mPm.getApplicationIcon(pkg);
         } catch (PackageManager.NameNotFoundException e) {
+            return null;
         }
 
-        return icon;
+        mIconCache.put(key, icon);
+        return newIcon(icon);
     }
 
     private CharSequence loadPackageName(String pkg) {
+        CharSequence label = mLabelCache.get(pkg);
+        if (label != null) return label;
+
+        label = pkg;
         try {
             ApplicationInfo info = mPm.getApplicationInfo(pkg,
                     PackageManager.GET_UNINSTALLED_PACKAGES);
-            if (info != null) return mPm.getApplicationLabel(info);
+            if (info != null) label = mPm.getApplicationLabel(info);
         } catch (PackageManager.NameNotFoundException e) {
         }
-        return pkg;
+        mLabelCache.put(pkg, label);
+        return label;
     }
 
     private Drawable loadIconDrawable(String pkg, int userId, int resId) {
-        Resources r = getResourcesForUserPackage(pkg, userId);
-
         if (resId == 0) {
             return null;
         }
 
+        final String key = getIconKey(pkg, userId, resId);
+        Drawable icon = mIconCache.get(key);
+        if (icon != null) return newIcon(icon);
+
+        Resources r = getResourcesForUserPackage(pkg, userId);
+        if (r == null) {
+            return null;
+        }
+
         try {
-            return r.getDrawable(resId);
+            icon = r.getDrawable(resId);
+            if (icon == null) return null;
+            mIconCache.put(key, icon);
+            return newIcon(icon);
         } catch (RuntimeException e) {
             Log.w(TAG, "Icon not found in "
                     + (pkg != null ? resId : "<system>")
@@ -395,7 +583,18 @@ public class NotificationStation extends SettingsPreferenceFragment {
         @Override
         public void onReceive(Context context, Intent intent) {
             logd("PackageReceiver.onReceive");
-            //refreshList();
+            final Uri data = intent.getData();
+            if (data == null) return;
+
+            // icons and labels may have changed; only rows loaded from now
+            // on pick that up
+            final String pkg = data.getSchemeSpecificPart();
+            mLabelCache.remove(pkg);
+            for (String key : mIconCache.snapshot().keySet()) {
+                if (key.startsWith(pkg + "|")) {
+                    mIconCache.remove(key);
+                }
+            }
         }
     }
 }
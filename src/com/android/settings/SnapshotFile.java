@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Versioned file in the cache directory holding labels and icons resolved
+ * from the package manager, so they can be shown before being resolved
+ * again.  Icons are kept as PNG bytes scaled to the launcher icon size, and
+ * are only decoded by whoever ends up drawing them.
+ */
+public class SnapshotFile {
+    private static final String TAG = "SnapshotFile";
+
+    public interface Reader {
+        /** Read the records following the header. */
+        void read(DataInputStream in) throws IOException;
+    }
+
+    public interface Writer {
+        /** Write the records following the header. */
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final AtomicFile mFile;
+    private final int mVersion;
+    private final int mIconSize;
+
+    public SnapshotFile(Context context, String name, int version) {
+        mFile = new AtomicFile(new File(context.getCacheDir(), name));
+        mVersion = version;
+        mIconSize = context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
+    }
+
+    /**
+     * Return the configuration labels and icons were resolved under: their
+     * locale and the density icons were scaled for.
+     */
+    public static String getConfigKey(Resources res) {
+        return res.getConfiguration().locale + "/" + res.getDisplayMetrics().densityDpi;
+    }
+
+    /**
+     * Read the file if it was written with the same version and config key.
+     * Returns false if it is missing, stale or corrupt; the reader may have
+     * been handed part of it in the last case.  Performs I/O.
+     */
+    public boolean read(String configKey, Reader reader) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != mVersion || !configKey.equals(in.readUTF())) {
+                return false;
+            }
+            reader.read(in);
+            return true;
+        } catch (FileNotFoundException e) {
+            // nothing written yet
+            return false;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + mFile.getBaseFile(), e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Atomically replace the file.  Performs I/O.
+     */
+    public boolean write(String configKey, Writer writer) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(mVersion);
+            out.writeUTF(configKey);
+            writer.write(out);
+            out.flush();
+            mFile.finishWrite(fos);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Return the icon scaled down to the launcher icon size and compressed
+     * as PNG, or null if it can't be rendered.
+     */
+    public byte[] compressIcon(Drawable icon) {
+        final Bitmap bitmap = scaleIcon(icon);
+        if (bitmap == null) return null;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, bytes)) return null;
+        return bytes.toByteArray();
+    }
+
+    public static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes != null) {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            out.writeInt(0);
+        }
+    }
+
+    public static byte[] readBytes(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length <= 0) return null;
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private Bitmap scaleIcon(Drawable icon) {
+        if (icon == null) return null;
+
+        if (icon instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap.getWidth() <= mIconSize && bitmap.getHeight() <= mIconSize) {
+                return bitmap;
+            }
+            return Bitmap.createScaledBitmap(bitmap, mIconSize, mIconSize, true);
+        }
+
+        // The icon may be drawn by the UI at the same time, so render a
+        // private copy instead of touching its bounds.
+        final Drawable.ConstantState state = icon.getConstantState();
+        if (state == null) return null;
+        final Drawable copy = state.newDrawable();
+        final Bitmap bitmap = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+        copy.setBounds(0, 0, mIconSize, mIconSize);
+        copy.draw(new Canvas(bitmap));
+        return bitmap;
+    }
+}
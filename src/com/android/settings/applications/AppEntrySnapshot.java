@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.android.settings.SnapshotFile;
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * On-disk snapshot of the {@link AppEntry} objects built by
+ * {@link ApplicationsState}.  The snapshot holds the label, the computed
+ * sizes and a scaled copy of the icon of every entry, so that a cold start
+ * can show a complete list before the package manager has been queried for
+ * each application.  Records are keyed by package name and only used while
+ * the apk has not been modified since the record was written.
+ */
+class AppEntrySnapshot {
+    static final String TAG = "AppEntrySnapshot";
+    static final boolean DEBUG = false;
+
+    static final String FILE_NAME = "app_entries.snapshot";
+
+    // Bump whenever the record layout below changes; older files are dropped.
+    static final int VERSION = 1;
+
+    static class Record {
+        long stamp;
+        String label;
+        long size;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+        // PNG bytes; decoded by the entry when its icon is first needed.
+        byte[] icon;
+    }
+
+    final SnapshotFile mFile;
+
+    // Records read from disk that have not been handed out yet.
+    final HashMap<String, Record> mRecords = new HashMap<String, Record>();
+
+    AppEntrySnapshot(Context context) {
+        mFile = new SnapshotFile(context, FILE_NAME, VERSION);
+    }
+
+    /**
+     * Returns the value an entry's record must match to still be valid.
+     * The apk is rewritten on every install or update, so its modification
+     * time moves together with the package's last update time.
+     */
+    static long getStamp(ApplicationInfo info) {
+        return new File(info.sourceDir).lastModified();
+    }
+
+    /**
+     * Labels and icons depend on the locale and density they were loaded
+     * with, so a snapshot is only usable under the same configuration.
+     */
+    static String getConfigKey(Resources res) {
+        return res.getConfiguration().locale + "/" + res.getDisplayMetrics().densityDpi;
+    }
+
+    /**
+     * Reads the snapshot from disk, replacing any records not yet taken.
+     * Nothing is loaded if the file is missing, stale or corrupt.  Performs
+     * I/O, so call on the background thread.
+     */
+    void load(String configKey) {
+        mRecords.clear();
+        final boolean loaded = mFile.read(configKey, new SnapshotFile.Reader() {
+            @Override
+            public void read(DataInputStream in) throws IOException {
+                final int count = in.readInt();
+                for (int i=0; i<count; i++) {
+                    String pkgName = in.readUTF();
+                    Record r = new Record();
+                    r.stamp = in.readLong();
+                    r.label = in.readUTF();
+                    r.size = in.readLong();
+                    r.internalSize = in.readLong();
+                    r.externalSize = in.readLong();
+                    r.cacheSize = in.readLong();
+                    r.codeSize = in.readLong();
+                    r.dataSize = in.readLong();
+                    r.externalCodeSize = in.readLong();
+                    r.externalDataSize = in.readLong();
+                    r.externalCacheSize = in.readLong();
+                    r.icon = SnapshotFile.readBytes(in);
+                    mRecords.put(pkgName, r);
+                }
+            }
+        });
+        if (!loaded) {
+            mRecords.clear();
+        }
+        if (DEBUG) Log.i(TAG, "Loaded " + mRecords.size() + " records");
+    }
+
+    /**
+     * Returns and forgets the record for the given application, or null if
+     * there is none or the apk changed since it was written.
+     */
+    Record take(ApplicationInfo info) {
+        Record r = mRecords.remove(info.packageName);
+        if (r != null && r.stamp != getStamp(info)) {
+            if (DEBUG) Log.i(TAG, "Dropping stale record for " + info.packageName);
+            return null;
+        }
+        return r;
+    }
+
+    void clear() {
+        mRecords.clear();
+    }
+
+    /**
+     * Writes out the given entries.  Entries whose size has not been
+     * computed yet are skipped, as they would not save any work.  Must be
+     * called without holding the ApplicationsState lock.
+     */
+    void write(String configKey, ArrayList<AppEntry> entries) {
+        final ArrayList<AppEntry> valid = new ArrayList<AppEntry>(entries.size());
+        for (int i=0; i<entries.size(); i++) {
+            AppEntry entry = entries.get(i);
+            if (entry.mounted && entry.size >= 0 && entry.label != null) {
+                valid.add(entry);
+            }
+        }
+        mFile.write(configKey, new SnapshotFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(valid.size());
+                for (int i=0; i<valid.size(); i++) {
+                    AppEntry entry = valid.get(i);
+                    synchronized (entry) {
+                        out.writeUTF(entry.info.packageName);
+                        out.writeLong(getStamp(entry.info));
+                        out.writeUTF(entry.label);
+                        out.writeLong(entry.size);
+                        out.writeLong(entry.internalSize);
+                        out.writeLong(entry.externalSize);
+                        out.writeLong(entry.cacheSize);
+                        out.writeLong(entry.codeSize);
+                        out.writeLong(entry.dataSize);
+                        out.writeLong(entry.externalCodeSize);
+                        out.writeLong(entry.externalDataSize);
+                        out.writeLong(entry.externalCacheSize);
+                        byte[] icon = mFile.compressIcon(entry.icon);
+                        if (icon == null) {
+                            // never shown since it was restored; keep it as is
+                            icon = entry.snapshotIcon;
+                        }
+                        SnapshotFile.writeBytes(out, icon);
+                    }
+                }
+            }
+        });
+        if (DEBUG) Log.i(TAG, "Wrote " + valid.size() + " records");
+    }
+}
@@ -105,6 +105,23 @@ public class AppOpsCategory extends ListFragment implements
         }
 
         @Override public void onReceive(Context context, Intent intent) {
+            // Only the packages that changed need to be read again.  The
+            // index follows package changes by itself too, but may hear of
+            // this one after the loader has already started reloading.
+            AppOpsIndex index = mLoader.mState.mIndex;
+            String action = intent.getAction();
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                String[] pkgs = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (pkgs != null) {
+                    for (String pkg : pkgs) {
+                        index.invalidatePackage(pkg);
+                    }
+                }
+            } else if (intent.getData() != null) {
+                index.invalidatePackage(intent.getData().getSchemeSpecificPart());
+            }
+
             // Tell the loader about the change.
             mLoader.onContentChanged();
         }
@@ -183,6 +183,7 @@ public class AppOpsDetails extends Fragment {
                         mAppOps.setMode(switchOp, entry.getPackageOps().getUid(),
                                 entry.getPackageOps().getPackageName(), isChecked
                                 ? AppOpsManager.MODE_ALLOWED : AppOpsManager.MODE_IGNORED);
+                        mState.mIndex.invalidateOps();
                     }
                 });
             }
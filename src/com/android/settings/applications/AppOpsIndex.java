@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Process-wide index of the app ops data that {@link AppOpsState} builds
+ * its lists from, shared by every {@link AppOpsState.OpsTemplate}.
+ *
+ * <p>The ops of all packages are fetched once for the union of the ops any
+ * template asked for, and filtered per template; the snapshot is reused for
+ * {@link #OPS_MAX_AGE} so that tabs loading together share it.  The packages
+ * holding the permissions behind those ops are kept per package, along with
+ * their application info and label, and only re-read for the packages
+ * passed to {@link #invalidatePackage}.
+ */
+class AppOpsIndex {
+    static final String TAG = "AppOpsIndex";
+    static final boolean DEBUG = false;
+
+    /** How long a snapshot of everyone's ops is shared between loads. */
+    static final long OPS_MAX_AGE = 2000;
+
+    /**
+     * A package holding at least one permission the index tracks.
+     */
+    static final class Holder {
+        final ApplicationInfo info;
+        // Granted permissions of interest, in the package's requested order.
+        final String[] perms;
+
+        Holder(ApplicationInfo info, String[] perms) {
+            this.info = info;
+            this.perms = perms;
+        }
+    }
+
+    /**
+     * Per-template lookup tables, built once.
+     */
+    static final class TemplateInfo {
+        final boolean[] hasOp = new boolean[AppOpsManager._NUM_OP];
+        final int[] opToOrder = new int[AppOpsManager._NUM_OP];
+        final HashMap<String, Integer> permToOp = new HashMap<String, Integer>();
+
+        TemplateInfo(AppOpsState.OpsTemplate tpl) {
+            for (int i=0; i<tpl.ops.length; i++) {
+                hasOp[tpl.ops[i]] = true;
+                String perm = AppOpsManager.opToPermission(tpl.ops[i]);
+                if (perm != null && !permToOp.containsKey(perm)) {
+                    permToOp.put(perm, tpl.ops[i]);
+                    opToOrder[tpl.ops[i]] = i;
+                }
+            }
+        }
+    }
+
+    private static AppOpsIndex sInstance;
+
+    static synchronized AppOpsIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppOpsIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    final Context mContext;
+    final AppOpsManager mAppOps;
+    final PackageManager mPm;
+
+    // Templates are unparceled anew by each fragment, so key them by their ops.
+    final HashMap<String, TemplateInfo> mTemplates = new HashMap<String, TemplateInfo>();
+
+    // Union of the ops and permissions asked for so far.
+    final boolean[] mTrackedOps = new boolean[AppOpsManager._NUM_OP];
+    final HashSet<String> mTrackedPerms = new HashSet<String>();
+
+    List<AppOpsManager.PackageOps> mOps;
+    long mOpsTime;
+
+    HashMap<String, Holder> mHolders;
+    final HashSet<String> mDirtyPackages = new HashSet<String>();
+
+    final HashMap<String, ApplicationInfo> mAppInfos = new HashMap<String, ApplicationInfo>();
+    final HashMap<String, String> mLabels = new HashMap<String, String>();
+    // Labels are loaded for the current locale; drop them when it changes.
+    final InterestingConfigChanges mLabelsConfig = new InterestingConfigChanges();
+
+    // The index outlives the app ops screens and their receivers, so it
+    // follows package changes itself, for as long as the process lives.
+    final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                String[] pkgs = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (pkgs != null) {
+                    for (String pkg : pkgs) {
+                        invalidatePackage(pkg);
+                    }
+                }
+            } else if (intent.getData() != null) {
+                invalidatePackage(intent.getData().getSchemeSpecificPart());
+            }
+        }
+    };
+
+    private AppOpsIndex(Context context) {
+        mContext = context;
+        mAppOps = (AppOpsManager)context.getSystemService(Context.APP_OPS_SERVICE);
+        mPm = context.getPackageManager();
+        mLabelsConfig.applyNewConfig(context.getResources());
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+        IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiver(mPackageReceiver, sdFilter);
+    }
+
+    synchronized TemplateInfo getTemplateInfo(AppOpsState.OpsTemplate tpl) {
+        String key = Arrays.toString(tpl.ops);
+        TemplateInfo info = mTemplates.get(key);
+        if (info == null) {
+            info = new TemplateInfo(tpl);
+            mTemplates.put(key, info);
+        }
+        return info;
+    }
+
+    /**
+     * Returns the ops of every package that used one of the template's ops,
+     * like {@link AppOpsManager#getPackagesForOps}.
+     */
+    synchronized List<AppOpsManager.PackageOps> getPackagesForOps(AppOpsState.OpsTemplate tpl) {
+        final TemplateInfo tplInfo = getTemplateInfo(tpl);
+        boolean newOps = false;
+        for (int i=0; i<tpl.ops.length; i++) {
+            if (!mTrackedOps[tpl.ops[i]]) {
+                mTrackedOps[tpl.ops[i]] = true;
+                newOps = true;
+            }
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        if (mOps == null || newOps || (now - mOpsTime) > OPS_MAX_AGE) {
+            int num = 0;
+            for (int i=0; i<mTrackedOps.length; i++) {
+                if (mTrackedOps[i]) num++;
+            }
+            final int[] ops = new int[num];
+            num = 0;
+            for (int i=0; i<mTrackedOps.length; i++) {
+                if (mTrackedOps[i]) ops[num++] = i;
+            }
+            mOps = mAppOps.getPackagesForOps(ops);
+            mOpsTime = now;
+            if (DEBUG) Log.d(TAG, "Fetched ops of " + (mOps != null ? mOps.size() : 0)
+                    + " packages");
+        }
+
+        final ArrayList<AppOpsManager.PackageOps> result
+                = new ArrayList<AppOpsManager.PackageOps>();
+        if (mOps == null) {
+            return result;
+        }
+        for (int i=0; i<mOps.size(); i++) {
+            AppOpsManager.PackageOps pkgOps = mOps.get(i);
+            List<AppOpsManager.OpEntry> entries = pkgOps.getOps();
+            ArrayList<AppOpsManager.OpEntry> filtered = null;
+            for (int j=0; j<entries.size(); j++) {
+                AppOpsManager.OpEntry op = entries.get(j);
+                if (tplInfo.hasOp[op.getOp()]) {
+                    if (filtered == null) {
+                        filtered = new ArrayList<AppOpsManager.OpEntry>();
+                    }
+                    filtered.add(op);
+                }
+            }
+            if (filtered != null) {
+                result.add(new AppOpsManager.PackageOps(pkgOps.getPackageName(),
+                        pkgOps.getUid(), filtered));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the packages granted one of the template's permissions.
+     */
+    synchronized List<Holder> getPermissionHolders(AppOpsState.OpsTemplate tpl) {
+        final TemplateInfo tplInfo = getTemplateInfo(tpl);
+        if (mTrackedPerms.addAll(tplInfo.permToOp.keySet())) {
+            // Asked about new permissions; start over.
+            mHolders = null;
+        }
+
+        if (mHolders == null) {
+            String[] perms = new String[mTrackedPerms.size()];
+            mTrackedPerms.toArray(perms);
+            List<PackageInfo> apps = mPm.getPackagesHoldingPermissions(perms, 0);
+            mHolders = new HashMap<String, Holder>();
+            for (int i=0; i<apps.size(); i++) {
+                addHolderLocked(apps.get(i));
+            }
+            mDirtyPackages.clear();
+            if (DEBUG) Log.d(TAG, "Fetched " + mHolders.size() + " permission holders");
+        } else if (!mDirtyPackages.isEmpty()) {
+            for (String pkg : mDirtyPackages) {
+                mHolders.remove(pkg);
+                try {
+                    addHolderLocked(mPm.getPackageInfo(pkg, PackageManager.GET_PERMISSIONS));
+                } catch (PackageManager.NameNotFoundException e) {
+                    // Removed.
+                }
+            }
+            if (DEBUG) Log.d(TAG, "Refreshed " + mDirtyPackages.size() + " packages");
+            mDirtyPackages.clear();
+        }
+
+        final ArrayList<Holder> result = new ArrayList<Holder>();
+        for (Holder holder : mHolders.values()) {
+            for (int i=0; i<holder.perms.length; i++) {
+                if (tplInfo.permToOp.containsKey(holder.perms[i])) {
+                    result.add(holder);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private void addHolderLocked(PackageInfo pi) {
+        if (pi.requestedPermissions == null) {
+            return;
+        }
+        ArrayList<String> perms = null;
+        for (int j=0; j<pi.requestedPermissions.length; j++) {
+            if (pi.requestedPermissionsFlags != null
+                    && (pi.requestedPermissionsFlags[j]
+                            & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
+                continue;
+            }
+            if (mTrackedPerms.contains(pi.requestedPermissions[j])) {
+                if (perms == null) {
+                    perms = new ArrayList<String>();
+                }
+                perms.add(pi.requestedPermissions[j]);
+            }
+        }
+        if (perms != null) {
+            mHolders.put(pi.packageName, new Holder(pi.applicationInfo,
+                    perms.toArray(new String[perms.size()])));
+            mAppInfos.put(pi.packageName, pi.applicationInfo);
+        }
+    }
+
+    /**
+     * Returns the application info of the given package, or null if it is
+     * not installed.
+     */
+    synchronized ApplicationInfo getApplicationInfo(String packageName) {
+        ApplicationInfo info = mAppInfos.get(packageName);
+        if (info == null) {
+            try {
+                info = mPm.getApplicationInfo(packageName,
+                        PackageManager.GET_DISABLED_COMPONENTS
+                        | PackageManager.GET_UNINSTALLED_PACKAGES);
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(TAG, "Unable to find info for package " + packageName);
+                return null;
+            }
+            mAppInfos.put(packageName, info);
+        }
+        return info;
+    }
+
+    synchronized String getLabel(String packageName) {
+        ensureLabelsConfigLocked();
+        return mLabels.get(packageName);
+    }
+
+    synchronized void putLabel(String packageName, String label) {
+        ensureLabelsConfigLocked();
+        mLabels.put(packageName, label);
+    }
+
+    private void ensureLabelsConfigLocked() {
+        if (mLabelsConfig.applyNewConfig(mContext.getResources())) {
+            if (DEBUG) Log.i(TAG, "Configuration changed; dropping labels");
+            mLabels.clear();
+        }
+    }
+
+    /**
+     * Forgets what is known about the given package, so that it is read
+     * again by the next load.
+     */
+    synchronized void invalidatePackage(String packageName) {
+        mDirtyPackages.add(packageName);
+        mAppInfos.remove(packageName);
+        mLabels.remove(packageName);
+        mOps = null;
+    }
+
+    /**
+     * Makes the next load fetch the ops again, such as after a mode changed.
+     */
+    synchronized void invalidateOps() {
+        mOps = null;
+    }
+}
@@ -49,6 +49,7 @@ public class AppOpsState {
     final PackageManager mPm;
     final CharSequence[] mOpSummaries;
     final CharSequence[] mOpLabels;
+    final AppOpsIndex mIndex;
 
     List<AppOpEntry> mApps;
 
@@ -58,6 +59,7 @@ public class AppOpsState {
         mPm = context.getPackageManager();
         mOpSummaries = context.getResources().getTextArray(R.array.app_ops_summaries);
         mOpLabels = context.getResources().getTextArray(R.array.app_ops_labels);
+        mIndex = AppOpsIndex.getInstance(context);
     }
 
     public static class OpsTemplate implements Parcelable {
@@ -311,6 +313,15 @@ public class AppOpsState {
             return mLabel;
         }
 
+        boolean isMounted() {
+            return mMounted;
+        }
+
+        void setLabel(String label) {
+            mLabel = label;
+            mMounted = true;
+        }
+
         void loadLabel(Context context) {
             if (mLabel == null || !mMounted) {
                 if (!mApkFile.exists()) {
@@ -505,17 +516,21 @@ public class AppOpsState {
         AppEntry appEntry = appEntries.get(packageName);
         if (appEntry == null) {
             if (appInfo == null) {
-                try {
-                    appInfo = mPm.getApplicationInfo(packageName,
-                            PackageManager.GET_DISABLED_COMPONENTS
-                            | PackageManager.GET_UNINSTALLED_PACKAGES);
-                } catch (PackageManager.NameNotFoundException e) {
-                    Log.w(TAG, "Unable to find info for package " + packageName);
+                appInfo = mIndex.getApplicationInfo(packageName);
+                if (appInfo == null) {
                     return null;
                 }
             }
             appEntry = new AppEntry(this, appInfo);
-            appEntry.loadLabel(context);
+            String label = mIndex.getLabel(packageName);
+            if (label != null) {
+                appEntry.setLabel(label);
+            } else {
+                appEntry.loadLabel(context);
+                if (appEntry.isMounted()) {
+                    mIndex.putLabel(packageName, appEntry.getLabel());
+                }
+            }
             appEntries.put(packageName, appEntry);
         }
         return appEntry;
@@ -527,25 +542,14 @@ public class AppOpsState {
         final HashMap<String, AppEntry> appEntries = new HashMap<String, AppEntry>();
         final List<AppOpEntry> entries = new ArrayList<AppOpEntry>();
 
-        final ArrayList<String> perms = new ArrayList<String>();
-        final ArrayList<Integer> permOps = new ArrayList<Integer>();
-        final int[] opToOrder = new int[AppOpsManager._NUM_OP];
-        for (int i=0; i<tpl.ops.length; i++) {
-            //if (tpl.showPerms[i]) {
-                String perm = AppOpsManager.opToPermission(tpl.ops[i]);
-                if (perm != null && !perms.contains(perm)) {
-                    perms.add(perm);
-                    permOps.add(tpl.ops[i]);
-                    opToOrder[tpl.ops[i]] = i;
-                }
-            //}
-        }
+        final AppOpsIndex.TemplateInfo tplInfo = mIndex.getTemplateInfo(tpl);
+        final int[] opToOrder = tplInfo.opToOrder;
 
         List<AppOpsManager.PackageOps> pkgs;
         if (packageName != null) {
             pkgs = mAppOps.getOpsForPackage(uid, packageName, tpl.ops);
         } else {
-            pkgs = mAppOps.getPackagesForOps(tpl.ops);
+            pkgs = mIndex.getPackagesForOps(tpl);
         }
 
         if (pkgs != null) {
@@ -563,62 +567,58 @@ public class AppOpsState {
             }
         }
 
-        List<PackageInfo> apps;
+        List<AppOpsIndex.Holder> apps;
         if (packageName != null) {
-            apps = new ArrayList<PackageInfo>();
+            apps = new ArrayList<AppOpsIndex.Holder>();
             try {
                 PackageInfo pi = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
-                apps.add(pi);
+                if (pi.requestedPermissions != null) {
+                    ArrayList<String> granted = new ArrayList<String>();
+                    for (int j=0; j<pi.requestedPermissions.length; j++) {
+                        if (pi.requestedPermissionsFlags == null
+                                || (pi.requestedPermissionsFlags[j]
+                                        & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) {
+                            granted.add(pi.requestedPermissions[j]);
+                        }
+                    }
+                    apps.add(new AppOpsIndex.Holder(pi.applicationInfo,
+                            granted.toArray(new String[granted.size()])));
+                }
             } catch (NameNotFoundException e) {
             }
         } else {
-            String[] permsArray = new String[perms.size()];
-            perms.toArray(permsArray);
-            apps = mPm.getPackagesHoldingPermissions(permsArray, 0);
+            apps = mIndex.getPermissionHolders(tpl);
         }
         for (int i=0; i<apps.size(); i++) {
-            PackageInfo appInfo = apps.get(i);
-            AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName,
-                    appInfo.applicationInfo);
+            AppOpsIndex.Holder holder = apps.get(i);
+            ApplicationInfo appInfo = holder.info;
+            AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName, appInfo);
             if (appEntry == null) {
                 continue;
             }
             List<AppOpsManager.OpEntry> dummyOps = null;
             AppOpsManager.PackageOps pkgOps = null;
-            if (appInfo.requestedPermissions != null) {
-                for (int j=0; j<appInfo.requestedPermissions.length; j++) {
-                    if (appInfo.requestedPermissionsFlags != null) {
-                        if ((appInfo.requestedPermissionsFlags[j]
-                                & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
-                            if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
-                                    + appInfo.requestedPermissions[j] + " not granted; skipping");
-                            continue;
-                        }
-                    }
-                    if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + ": requested perm "
-                            + appInfo.requestedPermissions[j]);
-                    for (int k=0; k<perms.size(); k++) {
-                        if (!perms.get(k).equals(appInfo.requestedPermissions[j])) {
-                            continue;
-                        }
-                        if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + perms.get(k)
-                                + " has op " + permOps.get(k) + ": " + appEntry.hasOp(permOps.get(k)));
-                        if (appEntry.hasOp(permOps.get(k))) {
-                            continue;
-                        }
-                        if (dummyOps == null) {
-                            dummyOps = new ArrayList<AppOpsManager.OpEntry>();
-                            pkgOps = new AppOpsManager.PackageOps(
-                                    appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
+            for (int j=0; j<holder.perms.length; j++) {
+                Integer op = tplInfo.permToOp.get(holder.perms[j]);
+                if (op == null) {
+                    continue;
+                }
+                if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + holder.perms[j]
+                        + " has op " + op + ": " + appEntry.hasOp(op));
+                if (appEntry.hasOp(op)) {
+                    continue;
+                }
+                if (dummyOps == null) {
+                    dummyOps = new ArrayList<AppOpsManager.OpEntry>();
+                    pkgOps = new AppOpsManager.PackageOps(
+                            appInfo.packageName, appInfo.uid, dummyOps);
 
-                        }
-                        AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
-                                permOps.get(k), AppOpsManager.MODE_ALLOWED, 0, 0, 0);
-                        dummyOps.add(opEntry);
-                        addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                                packageName == null ? 0 : opToOrder[opEntry.getOp()]);
-                    }
                 }
+                AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
+                        op, AppOpsManager.MODE_ALLOWED, 0, 0, 0);
+                dummyOps.add(opEntry);
+                addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
+                        packageName == null ? 0 : opToOrder[opEntry.getOp()]);
             }
         }
 
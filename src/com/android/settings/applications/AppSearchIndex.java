@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Sorted prefix index over the normalized labels and package names of the
+ * {@link AppEntry} objects known to {@link ApplicationsState}.
+ *
+ * <p>Every entry contributes one key per word of its label, holding the
+ * label from that word on, and one key per segment of its package name, so
+ * a query matches an entry when its label or one of its words starts with
+ * the query, or when its package name or one of its segments does.  Keys
+ * sharing a prefix are contiguous, which makes a query two binary searches,
+ * and a longer query only needs to look within the range of the shorter
+ * one it extends.
+ *
+ * <p>New entries are held back and merged in one sort the next time the
+ * index is queried or {@link #flushPending} is called, so loading every
+ * application does not shift the key list once per key.
+ *
+ * <p>Not thread safe; ApplicationsState guards it with its entries lock.
+ */
+class AppSearchIndex {
+    static final class Key {
+        final String key;
+        final AppEntry entry;
+
+        Key(String key, AppEntry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+
+    static final Comparator<Key> KEY_COMPARATOR = new Comparator<Key>() {
+        @Override
+        public int compare(Key lhs, Key rhs) {
+            return lhs.key.compareTo(rhs.key);
+        }
+    };
+
+    /**
+     * Result of a query, kept by the caller so that the next query can
+     * narrow it down instead of searching the whole index.
+     */
+    static final class Query {
+        final String prefix;
+        final int generation;
+        final int start;
+        final int end;
+
+        Query(String prefix, int generation, int start, int end) {
+            this.prefix = prefix;
+            this.generation = generation;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    ArrayList<Key> mKeys = new ArrayList<Key>();
+
+    // The keys each entry was indexed under, to find them again on removal.
+    final HashMap<AppEntry, String[]> mEntryKeys = new HashMap<AppEntry, String[]>();
+
+    // Entries added since the last merge, whose keys are not in mKeys yet.
+    final HashSet<AppEntry> mPending = new HashSet<AppEntry>();
+
+    // Bumped on every change; queries from an older generation are stale.
+    int mGeneration;
+
+    void add(AppEntry entry) {
+        if (mEntryKeys.containsKey(entry)) {
+            update(entry);
+            return;
+        }
+        mEntryKeys.put(entry, buildKeys(entry));
+        mPending.add(entry);
+        mGeneration++;
+    }
+
+    void remove(AppEntry entry) {
+        String[] keys = mEntryKeys.remove(entry);
+        if (keys == null) {
+            return;
+        }
+        if (mPending.remove(entry)) {
+            mGeneration++;
+            return;
+        }
+        for (String key : keys) {
+            for (int i=lowerBound(0, mKeys.size(), key); i<mKeys.size(); i++) {
+                Key k = mKeys.get(i);
+                if (!k.key.equals(key)) {
+                    break;
+                }
+                if (k.entry == entry) {
+                    mKeys.remove(i);
+                    break;
+                }
+            }
+        }
+        mGeneration++;
+    }
+
+    /**
+     * Re-indexes the entry if its label changed since it was added.
+     */
+    void update(AppEntry entry) {
+        String[] keys = mEntryKeys.get(entry);
+        if (keys != null && entry.label != null
+                && keys[0].equals(ApplicationsState.normalize(entry.label))) {
+            return;
+        }
+        remove(entry);
+        add(entry);
+    }
+
+    void clear() {
+        mKeys.clear();
+        mEntryKeys.clear();
+        mPending.clear();
+        mGeneration++;
+    }
+
+    /**
+     * Merges the keys of the entries added since the last merge into the
+     * index: they are sorted once and merged with the existing keys in a
+     * single pass.
+     */
+    void flushPending() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        ArrayList<Key> added = new ArrayList<Key>();
+        for (AppEntry entry : mPending) {
+            for (String key : mEntryKeys.get(entry)) {
+                added.add(new Key(key, entry));
+            }
+        }
+        mPending.clear();
+        Collections.sort(added, KEY_COMPARATOR);
+
+        final ArrayList<Key> keys = mKeys;
+        final ArrayList<Key> merged = new ArrayList<Key>(keys.size() + added.size());
+        int i = 0;
+        int j = 0;
+        while (i < keys.size() && j < added.size()) {
+            if (KEY_COMPARATOR.compare(keys.get(i), added.get(j)) <= 0) {
+                merged.add(keys.get(i++));
+            } else {
+                merged.add(added.get(j++));
+            }
+        }
+        while (i < keys.size()) {
+            merged.add(keys.get(i++));
+        }
+        while (j < added.size()) {
+            merged.add(added.get(j++));
+        }
+        mKeys = merged;
+        mGeneration++;
+    }
+
+    /**
+     * Finds all keys starting with the given normalized prefix.  If
+     * previous is a still valid query for a prefix of this one, only its
+     * range is searched.
+     */
+    Query query(String prefix, Query previous) {
+        flushPending();
+        int lo = 0;
+        int hi = mKeys.size();
+        if (previous != null && previous.generation == mGeneration
+                && prefix.startsWith(previous.prefix)) {
+            lo = previous.start;
+            hi = previous.end;
+        }
+        final int start = lowerBound(lo, hi, prefix);
+        final int end = lowerBound(start, hi, prefix + '\uffff');
+        return new Query(prefix, mGeneration, start, end);
+    }
+
+    /**
+     * Adds the entries matched by the query to out.
+     */
+    void collect(Query query, Collection<AppEntry> out) {
+        if (query.generation != mGeneration) {
+            throw new IllegalStateException("Stale query for \"" + query.prefix + "\"");
+        }
+        for (int i=query.start; i<query.end; i++) {
+            out.add(mKeys.get(i).entry);
+        }
+    }
+
+    private int lowerBound(int lo, int hi, String key) {
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mKeys.get(mid).key.compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // The first key is always the whole normalized label.
+    private static String[] buildKeys(AppEntry entry) {
+        final String label = entry.label != null
+                ? ApplicationsState.normalize(entry.label) : "";
+        final String pkgName = entry.info.packageName.toLowerCase();
+        HashSet<String> keys = new HashSet<String>();
+        for (int i=label.indexOf(' '); i>=0; i=label.indexOf(' ', i+1)) {
+            keys.add(label.substring(i+1));
+        }
+        keys.add(pkgName);
+        for (int i=pkgName.indexOf('.'); i>=0; i=pkgName.indexOf('.', i+1)) {
+            keys.add(pkgName.substring(i+1));
+        }
+        keys.remove(label);
+        keys.remove("");
+        String[] result = new String[keys.size()+1];
+        result[0] = label;
+        int i = 1;
+        for (String key : keys) {
+            result[i++] = key;
+        }
+        return result;
+    }
+}
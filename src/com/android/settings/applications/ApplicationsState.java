@@ -10,6 +10,9 @@ import android.content.pm.IPackageStatsObserver;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageStats;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Handler;
@@ -27,9 +30,12 @@ import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -46,6 +52,8 @@ public class ApplicationsState {
         public void onRunningStateChanged(boolean running);
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
+        public void onEntriesChanged(ArrayList<AppEntry> apps, ArrayList<AppEntry> added,
+                ArrayList<AppEntry> removed, ArrayList<AppEntry> moved);
         public void onPackageIconChanged();
         public void onPackageSizeChanged(String packageName);
         public void onAllSizesComputed();
@@ -59,6 +67,20 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Number of package size requests kept in flight.  Fixed, since the
+    // package manager measures them one at a time anyway; this only hides
+    // the round trip between one result and the next request.
+    static final int SIZE_FETCH_WIDTH = 4;
+
+    // Maximum number of packages remembered as wanting their size first.
+    static final int MAX_PRIORITY_SIZE_PKGS = 32;
+
+    // Size changes are gathered for this long before being dispatched.
+    static final long SIZE_CHANGE_BATCH_DELAY = 100;
+
+    // A size request without an answer after this long is issued again.
+    static final long SIZE_REQUEST_TIMEOUT = 20*1000;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -113,6 +135,12 @@ public class ApplicationsState {
         boolean sizeStale;
         long sizeLoadStart;
 
+        // Set while the label and icon are the ones restored from the
+        // on-disk snapshot and have not been reloaded from the package yet.
+        boolean fromSnapshot;
+        // PNG of the snapshot icon, decoded the first time it is needed.
+        byte[] snapshotIcon;
+
         String normalizedLabel;
 
         AppEntry(Context context, ApplicationInfo info, long id) {
@@ -123,7 +151,42 @@ public class ApplicationsState {
             this.sizeStale = true;
             ensureLabel(context);
         }
+
+        AppEntry(Context context, ApplicationInfo info, long id, AppEntrySnapshot.Record record) {
+            apkFile = new File(info.sourceDir);
+            this.id = id;
+            this.info = info;
+            this.label = record.label;
+            this.mounted = true;
+            this.size = record.size;
+            this.internalSize = record.internalSize;
+            this.externalSize = record.externalSize;
+            this.cacheSize = record.cacheSize;
+            this.codeSize = record.codeSize;
+            this.dataSize = record.dataSize;
+            this.externalCodeSize = record.externalCodeSize;
+            this.externalDataSize = record.externalDataSize;
+            this.externalCacheSize = record.externalCacheSize;
+            this.snapshotIcon = record.icon;
+            this.sizeStale = true;
+            this.fromSnapshot = true;
+        }
         
+        // Copy of the fields the comparators look at, taken under the
+        // entry's lock, for sorting against values that can't change.
+        AppEntry(AppEntry other) {
+            synchronized (other) {
+                apkFile = other.apkFile;
+                id = other.id;
+                info = other.info;
+                label = other.label;
+                mounted = other.mounted;
+                size = other.size;
+                internalSize = other.internalSize;
+                externalSize = other.externalSize;
+            }
+        }
+
         void ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
                 if (!this.apkFile.exists()) {
@@ -138,6 +201,15 @@ public class ApplicationsState {
         }
         
         boolean ensureIconLocked(Context context, PackageManager pm) {
+            if (this.icon == null && this.snapshotIcon != null) {
+                final Bitmap bitmap = BitmapFactory.decodeByteArray(
+                        this.snapshotIcon, 0, this.snapshotIcon.length);
+                this.snapshotIcon = null;
+                if (bitmap != null) {
+                    this.icon = new BitmapDrawable(context.getResources(), bitmap);
+                    return true;
+                }
+            }
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
                     this.icon = this.info.loadIcon(pm);
@@ -158,6 +230,55 @@ public class ApplicationsState {
             }
             return false;
         }
+
+        // Replaces the label and icon restored from the snapshot with the
+        // ones of the installed package.  Returns true if the label changed.
+        boolean revalidateLocked(Context context, PackageManager pm) {
+            this.fromSnapshot = false;
+            this.snapshotIcon = null;
+            final String oldLabel = this.label;
+            this.mounted = false;
+            ensureLabel(context);
+            if (this.mounted) {
+                this.icon = this.info.loadIcon(pm);
+            } else {
+                this.icon = null;
+                ensureIconLocked(context, pm);
+            }
+            if (!this.label.equals(oldLabel)) {
+                this.normalizedLabel = null;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Position of an entry in a session's incrementally updated list.  The
+     * list is ordered by the copy of the entry's sort key taken when it was
+     * placed, since the entry itself keeps changing on other threads.
+     */
+    static final class SortSlot {
+        final AppEntry entry;
+        final AppEntry key;
+
+        SortSlot(AppEntry entry) {
+            this.entry = entry;
+            this.key = new AppEntry(entry);
+        }
+    }
+
+    static final class SortSlotComparator implements Comparator<SortSlot> {
+        final Comparator<AppEntry> mComparator;
+
+        SortSlotComparator(Comparator<AppEntry> comparator) {
+            mComparator = comparator;
+        }
+
+        @Override
+        public int compare(SortSlot lhs, SortSlot rhs) {
+            return mComparator.compare(lhs.key, rhs.key);
+        }
     }
 
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
@@ -278,11 +399,19 @@ public class ApplicationsState {
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
     final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
+    final AppSearchIndex mSearchIndex = new AppSearchIndex();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+    final HashSet<String> mComputingSizePkgs = new HashSet<String>();
+    final ArrayList<String> mPrioritySizePkgs = new ArrayList<String>();
+    final HashSet<String> mPendingSizeChanges = new HashSet<String>();
     boolean mSessionsChanged;
 
+    // Persisted copy of mAppEntries used to seed the list on a cold start.
+    final AppEntrySnapshot mSnapshot;
+    String mSnapshotConfig;
+    boolean mSnapshotDirty;
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
@@ -365,6 +494,7 @@ public class ApplicationsState {
         static final int MSG_PACKAGE_SIZE_CHANGED = 4;
         static final int MSG_ALL_SIZES_COMPUTED = 5;
         static final int MSG_RUNNING_STATE_CHANGED = 6;
+        static final int MSG_ENTRIES_CHANGED = 7;
 
         @Override
         public void handleMessage(Message msg) {
@@ -387,12 +517,12 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
-                    for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
-                                (String)msg.obj);
-                    }
+                    dispatchSizeChanges();
                 } break;
                 case MSG_ALL_SIZES_COMPUTED: {
+                    // Make sure the last batch of sizes arrives first.
+                    removeMessages(MSG_PACKAGE_SIZE_CHANGED);
+                    dispatchSizeChanges();
                     for (int i=0; i<mActiveSessions.size(); i++) {
                         mActiveSessions.get(i).mCallbacks.onAllSizesComputed();
                     }
@@ -403,12 +533,52 @@ public class ApplicationsState {
                                 msg.arg1 != 0);
                     }
                 } break;
+                case MSG_ENTRIES_CHANGED: {
+                    EntriesDelta delta = (EntriesDelta)msg.obj;
+                    if (mActiveSessions.contains(delta.session)) {
+                        delta.session.mCallbacks.onEntriesChanged(delta.apps,
+                                delta.added, delta.removed, delta.moved);
+                    }
+                } break;
+            }
+        }
+
+        private void dispatchSizeChanges() {
+            String[] pkgNames;
+            synchronized (mEntriesMap) {
+                if (mPendingSizeChanges.isEmpty()) {
+                    return;
+                }
+                pkgNames = mPendingSizeChanges.toArray(new String[mPendingSizeChanges.size()]);
+                mPendingSizeChanges.clear();
+            }
+            for (int i=0; i<mActiveSessions.size(); i++) {
+                Callbacks callbacks = mActiveSessions.get(i).mCallbacks;
+                for (String pkgName : pkgNames) {
+                    callbacks.onPackageSizeChanged(pkgName);
+                }
             }
         }
     }
 
     final MainHandler mMainHandler = new MainHandler();
 
+    /**
+     * Changes applied to the sorted list of an incremental session, as
+     * delivered to {@link Callbacks#onEntriesChanged}.
+     */
+    static class EntriesDelta {
+        Session session;
+        ArrayList<AppEntry> apps;
+        final ArrayList<AppEntry> added = new ArrayList<AppEntry>();
+        final ArrayList<AppEntry> removed = new ArrayList<AppEntry>();
+        final ArrayList<AppEntry> moved = new ArrayList<AppEntry>();
+
+        boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && moved.isEmpty();
+        }
+    }
+
     // --------------------------------------------------------------
 
     static final Object sLock = new Object();
@@ -430,6 +600,7 @@ public class ApplicationsState {
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
         mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+        mSnapshot = new AppEntrySnapshot(mContext);
 
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
@@ -476,10 +647,33 @@ public class ApplicationsState {
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
 
+        // Incremental updates of the last rebuilt list.  The filter and
+        // comparator are synchronized on mRebuildSync; mSortedSlots and
+        // mSlotsByPackage are only touched by the background thread and
+        // mPendingChanges is synchronized on mEntriesMap.
+        boolean mIncremental;
+        AppFilter mLastFilter;
+        Comparator<AppEntry> mLastComparator;
+        ArrayList<SortSlot> mSortedSlots;
+        final HashMap<String, SortSlot> mSlotsByPackage = new HashMap<String, SortSlot>();
+        final HashSet<String> mPendingChanges = new HashSet<String>();
+
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
         }
 
+        /**
+         * When enabled, package additions, removals and size or label
+         * changes are applied to the list of the last {@link #rebuild} and
+         * reported through {@link Callbacks#onEntriesChanged}, so the
+         * client does not need to rebuild the whole list for them.
+         */
+        public void setIncremental(boolean incremental) {
+            synchronized (mRebuildSync) {
+                mIncremental = incremental;
+            }
+        }
+
         public void resume() {
             if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
             synchronized (mEntriesMap) {
@@ -545,11 +739,13 @@ public class ApplicationsState {
         void handleRebuildList() {
             AppFilter filter;
             Comparator<AppEntry> comparator;
+            boolean incremental;
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
                     return;
                 }
 
+                incremental = mIncremental;
                 filter = mRebuildFilter;
                 comparator = mRebuildComparator;
                 mRebuildRequested = false;
@@ -576,7 +772,7 @@ public class ApplicationsState {
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
                         AppEntry entry = getEntryLocked(info);
-                        entry.ensureLabel(mContext);
+                        ensureLabelLocked(entry);
                         if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
                         filteredApps.add(entry);
                         if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
@@ -586,9 +782,32 @@ public class ApplicationsState {
 
             Collections.sort(filteredApps, comparator);
 
+            ArrayList<SortSlot> slots = null;
+            if (incremental) {
+                slots = new ArrayList<SortSlot>(filteredApps.size());
+                synchronized (mEntriesMap) {
+                    for (int i=0; i<filteredApps.size(); i++) {
+                        slots.add(new SortSlot(filteredApps.get(i)));
+                    }
+                }
+                // Mostly sorted already; this only fixes up entries whose
+                // size or label moved while the list was being sorted.
+                Collections.sort(slots, new SortSlotComparator(comparator));
+            }
+
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
                     mLastAppList = filteredApps;
+                    mLastFilter = filter;
+                    mLastComparator = comparator;
+                    mSortedSlots = slots;
+                    mSlotsByPackage.clear();
+                    if (slots != null) {
+                        for (int i=0; i<slots.size(); i++) {
+                            SortSlot slot = slots.get(i);
+                            mSlotsByPackage.put(slot.entry.info.packageName, slot);
+                        }
+                    }
                     if (!mRebuildAsync) {
                         mRebuildResult = filteredApps;
                         mRebuildSync.notifyAll();
@@ -605,6 +824,125 @@ public class ApplicationsState {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        void handleApplyChanges() {
+            AppFilter filter;
+            Comparator<AppEntry> comparator;
+            synchronized (mRebuildSync) {
+                if (mRebuildRequested || mSortedSlots == null) {
+                    // A full rebuild is on its way and will pick up the changes.
+                    synchronized (mEntriesMap) {
+                        mPendingChanges.clear();
+                    }
+                    return;
+                }
+                filter = mLastFilter;
+                comparator = mLastComparator;
+            }
+
+            String[] pkgNames;
+            synchronized (mEntriesMap) {
+                if (mPendingChanges.isEmpty()) {
+                    return;
+                }
+                pkgNames = mPendingChanges.toArray(new String[mPendingChanges.size()]);
+                mPendingChanges.clear();
+            }
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+
+            if (filter != null) {
+                filter.init();
+            }
+
+            final ArrayList<SortSlot> slots = mSortedSlots;
+            final SortSlotComparator slotComparator = new SortSlotComparator(comparator);
+            final EntriesDelta delta = new EntriesDelta();
+            for (String pkgName : pkgNames) {
+                SortSlot oldSlot = mSlotsByPackage.remove(pkgName);
+                int oldIndex = oldSlot != null ? indexOfSlot(slots, oldSlot, slotComparator) : -1;
+                AppEntry oldEntry = null;
+                if (oldIndex >= 0) {
+                    slots.remove(oldIndex);
+                    oldEntry = oldSlot.entry;
+                }
+
+                ApplicationInfo info = null;
+                synchronized (mEntriesMap) {
+                    int idx = indexOfApplicationInfoLocked(pkgName);
+                    if (idx >= 0) {
+                        info = mApplications.get(idx);
+                    }
+                }
+                AppEntry entry = null;
+                SortSlot slot = null;
+                if (info != null && (filter == null || filter.filterApp(info))) {
+                    synchronized (mEntriesMap) {
+                        entry = getEntryLocked(info);
+                        ensureLabelLocked(entry);
+                        slot = new SortSlot(entry);
+                    }
+                }
+
+                if (entry != null) {
+                    int pos = Collections.binarySearch(slots, slot, slotComparator);
+                    if (pos < 0) {
+                        pos = -pos - 1;
+                    }
+                    slots.add(pos, slot);
+                    mSlotsByPackage.put(pkgName, slot);
+                    if (oldEntry == null) {
+                        delta.added.add(entry);
+                    } else if (oldEntry != entry) {
+                        delta.removed.add(oldEntry);
+                        delta.added.add(entry);
+                    } else if (pos != oldIndex) {
+                        delta.moved.add(entry);
+                    }
+                } else if (oldEntry != null) {
+                    delta.removed.add(oldEntry);
+                }
+            }
+            if (DEBUG) Log.i(TAG, "Applied " + pkgNames.length + " changes: +"
+                    + delta.added.size() + " -" + delta.removed.size()
+                    + " ~" + delta.moved.size());
+
+            if (!delta.isEmpty()) {
+                synchronized (mRebuildSync) {
+                    if (!mRebuildRequested) {
+                        delta.session = this;
+                        delta.apps = new ArrayList<AppEntry>(slots.size());
+                        for (int i=0; i<slots.size(); i++) {
+                            delta.apps.add(slots.get(i).entry);
+                        }
+                        mLastAppList = delta.apps;
+                        Message msg = mMainHandler.obtainMessage(
+                                MainHandler.MSG_ENTRIES_CHANGED, delta);
+                        mMainHandler.sendMessage(msg);
+                    }
+                }
+            }
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        // Finds the given slot by identity, searching only among the slots
+        // that sort equal to it.
+        int indexOfSlot(ArrayList<SortSlot> slots, SortSlot slot,
+                SortSlotComparator comparator) {
+            int pos = Collections.binarySearch(slots, slot, comparator);
+            if (pos < 0) {
+                return -1;
+            }
+            for (int i=pos; i>=0 && comparator.compare(slots.get(i), slot) == 0; i--) {
+                if (slots.get(i) == slot) return i;
+            }
+            for (int i=pos+1; i<slots.size() && comparator.compare(slots.get(i), slot) == 0;
+                    i++) {
+                if (slots.get(i) == slot) return i;
+            }
+            return -1;
+        }
+
         public void release() {
             pause();
             synchronized (mEntriesMap) {
@@ -613,6 +951,21 @@ public class ApplicationsState {
         }
     }
 
+    // Queues a change of the given package for every incremental session.
+    void scheduleEntryChangeLocked(String pkgName) {
+        boolean scheduled = false;
+        for (int i=0; i<mSessions.size(); i++) {
+            Session s = mSessions.get(i);
+            if (s.mResumed && s.mIncremental) {
+                s.mPendingChanges.add(pkgName);
+                scheduled = true;
+            }
+        }
+        if (scheduled && !mBackgroundHandler.hasMessages(BackgroundHandler.MSG_APPLY_CHANGES)) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_APPLY_CHANGES);
+        }
+    }
+
     public Session newSession(Callbacks callbacks) {
         Session s = new Session(callbacks);
         synchronized (mEntriesMap) {
@@ -640,12 +993,19 @@ public class ApplicationsState {
             // should completely reload the app entries.
             mEntriesMap.clear();
             mAppEntries.clear();
+            mSearchIndex.clear();
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
                 mAppEntries.get(i).sizeStale = true;
             }
         }
 
+        // With no entries in memory this is a cold start (or the
+        // configuration changed); restore what we can from the last
+        // snapshot before loading entries from the package manager.
+        mSnapshotConfig = AppEntrySnapshot.getConfigKey(mContext.getResources());
+        final boolean loadSnapshot = mEntriesMap.isEmpty();
+
         mHaveDisabledApps = false;
         for (int i=0; i<mApplications.size(); i++) {
             final ApplicationInfo info = mApplications.get(i);
@@ -664,8 +1024,15 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
-        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
+        mComputingSizePkgs.clear();
+        if (loadSnapshot) {
+            // Reading and parsing the file is I/O; leave it to the
+            // background thread, which moves on to MSG_LOAD_ENTRIES.
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_SNAPSHOT)) {
+                mBackgroundHandler.sendMessageAtFrontOfQueue(mBackgroundHandler.obtainMessage(
+                        BackgroundHandler.MSG_LOAD_SNAPSHOT, mSnapshotConfig));
+            }
+        } else if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
     }
@@ -728,6 +1095,40 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * Asks for the size of the given package to be computed before those
+     * of packages that are not on screen.  The most recent request wins.
+     */
+    void prioritizeSize(String packageName) {
+        synchronized (mEntriesMap) {
+            int idx = mPrioritySizePkgs.indexOf(packageName);
+            if (idx == 0) {
+                return;
+            }
+            if (idx > 0) {
+                mPrioritySizePkgs.remove(idx);
+            } else if (mPrioritySizePkgs.size() >= MAX_PRIORITY_SIZE_PKGS) {
+                mPrioritySizePkgs.remove(mPrioritySizePkgs.size()-1);
+            }
+            mPrioritySizePkgs.add(0, packageName);
+        }
+    }
+
+    /**
+     * Adds to out every entry whose normalized label, or one of its words,
+     * or whose package name, or one of its segments, starts with the given
+     * normalized prefix.  Passing the query returned for a shorter prefix
+     * restricts the search to the entries that one matched.
+     */
+    AppSearchIndex.Query searchEntries(String prefix, AppSearchIndex.Query previous,
+            Collection<AppEntry> out) {
+        synchronized (mEntriesMap) {
+            AppSearchIndex.Query query = mSearchIndex.query(prefix, previous);
+            mSearchIndex.collect(query, out);
+            return query;
+        }
+    }
+
     long sumCacheSizes() {
         long sum = 0;
         if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
@@ -776,6 +1177,7 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                scheduleEntryChangeLocked(pkgName);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -799,9 +1201,12 @@ public class ApplicationsState {
                 if (entry != null) {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
+                    mSearchIndex.remove(entry);
+                    mSnapshotDirty = true;
                 }
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
+                scheduleEntryChangeLocked(pkgName);
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
                     for (int i=0; i<mApplications.size(); i++) {
@@ -832,12 +1237,33 @@ public class ApplicationsState {
             entry = new AppEntry(mContext, info, mCurId++);
             mEntriesMap.put(info.packageName, entry);
             mAppEntries.add(entry);
+            mSearchIndex.add(entry);
         } else if (entry.info != info) {
             entry.info = info;
         }
         return entry;
     }
 
+    void ensureLabelLocked(AppEntry entry) {
+        final String oldLabel = entry.label;
+        entry.ensureLabel(mContext);
+        if (entry.label != oldLabel) {
+            mSearchIndex.update(entry);
+        }
+    }
+
+    AppEntry seedEntryLocked(ApplicationInfo info, AppEntrySnapshot.Record record) {
+        if (DEBUG) Log.i(TAG, "Restoring AppEntry for " + info.packageName);
+        AppEntry entry = new AppEntry(mContext, info, mCurId++, record);
+        entry.sizeStr = getSizeStr(entry.size);
+        entry.internalSizeStr = getSizeStr(entry.internalSize);
+        entry.externalSizeStr = getSizeStr(entry.externalSize);
+        mEntriesMap.put(info.packageName, entry);
+        mAppEntries.add(entry);
+        mSearchIndex.add(entry);
+        return entry;
+    }
+
     // --------------------------------------------------------------
 
     private long getTotalInternalSize(PackageStats ps) {
@@ -872,6 +1298,8 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_APPLY_CHANGES = 5;
+        static final int MSG_LOAD_SNAPSHOT = 6;
 
         boolean mRunning;
 
@@ -913,17 +1341,22 @@ public class ApplicationsState {
                                 if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
                                         + ": " + entry.sizeStr);
                                 sizeChanged = true;
+                                mSnapshotDirty = true;
                             }
                         }
                         if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                            scheduleEntryChangeLocked(stats.packageName);
+                            mPendingSizeChanges.add(stats.packageName);
+                            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED)) {
+                                mMainHandler.sendEmptyMessageDelayed(
+                                        MainHandler.MSG_PACKAGE_SIZE_CHANGED,
+                                        SIZE_CHANGE_BATCH_DELAY);
+                            }
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    mComputingSizePkgs.remove(stats.packageName);
+                    mPrioritySizePkgs.remove(stats.packageName);
+                    if (!hasMessages(MSG_LOAD_SIZES)) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -954,6 +1387,48 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_LIST: {
                 } break;
+                case MSG_APPLY_CHANGES: {
+                    ArrayList<Session> sessions;
+                    synchronized (mEntriesMap) {
+                        sessions = new ArrayList<Session>(mSessions);
+                    }
+                    for (int i=0; i<sessions.size(); i++) {
+                        Session s = sessions.get(i);
+                        if (s.mIncremental) {
+                            s.handleApplyChanges();
+                        }
+                    }
+                } break;
+                case MSG_LOAD_SNAPSHOT: {
+                    // Only this thread touches mSnapshot, so read it before
+                    // taking the lock and just publish the records under it.
+                    mSnapshot.load((String) msg.obj);
+                    int numSeeded = 0;
+                    synchronized (mEntriesMap) {
+                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SNAPSHOT acquired lock");
+                        for (int i=0; i<mApplications.size(); i++) {
+                            ApplicationInfo info = mApplications.get(i);
+                            if (mEntriesMap.get(info.packageName) == null) {
+                                AppEntrySnapshot.Record record = mSnapshot.take(info);
+                                if (record != null) {
+                                    seedEntryLocked(info, record);
+                                    scheduleEntryChangeLocked(info.packageName);
+                                    numSeeded++;
+                                }
+                            }
+                        }
+                        mSearchIndex.flushPending();
+                        if (numSeeded > 0
+                                && !mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+                        }
+                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SNAPSHOT releasing lock");
+                    }
+                    mSnapshot.clear();
+                    if (!hasMessages(MSG_LOAD_ENTRIES)) {
+                        sendEmptyMessage(MSG_LOAD_ENTRIES);
+                    }
+                } break;
                 case MSG_LOAD_ENTRIES: {
                     int numDone = 0;
                     synchronized (mEntriesMap) {
@@ -971,6 +1446,11 @@ public class ApplicationsState {
                                 getEntryLocked(info);
                             }
                         }
+                        if (numDone < 6) {
+                            // All loaded; index them here rather than on the
+                            // first search from the UI.
+                            mSearchIndex.flushPending();
+                        }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
 
@@ -982,11 +1462,22 @@ public class ApplicationsState {
                 } break;
                 case MSG_LOAD_ICONS: {
                     int numDone = 0;
+                    boolean labelChanged = false;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
                         for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
                             AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
+                            if (entry.fromSnapshot) {
+                                synchronized (entry) {
+                                    if (entry.revalidateLocked(mContext, mPm)) {
+                                        labelChanged = true;
+                                        mSnapshotDirty = true;
+                                        scheduleEntryChangeLocked(entry.info.packageName);
+                                        mSearchIndex.update(entry);
+                                    }
+                                }
+                                numDone++;
+                            } else if (entry.icon == null || !entry.mounted) {
                                 synchronized (entry) {
                                     if (entry.ensureIconLocked(mContext, mPm)) {
                                         if (!mRunning) {
@@ -1007,6 +1498,12 @@ public class ApplicationsState {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
                         }
                     }
+                    if (labelChanged) {
+                        // The sort order may depend on the label.
+                        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+                        }
+                    }
                     if (numDone >= 2) {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     } else {
@@ -1014,33 +1511,49 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
+                    ArrayList<AppEntry> snapshotEntries = null;
+                    String snapshotConfig = null;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
+                        final long now = SystemClock.uptimeMillis();
+
+                        // Forget requests that never got an answer, so they
+                        // can be issued again below.
+                        Iterator<String> it = mComputingSizePkgs.iterator();
+                        while (it.hasNext()) {
+                            AppEntry entry = mEntriesMap.get(it.next());
+                            if (entry == null
+                                    || entry.sizeLoadStart < (now-SIZE_REQUEST_TIMEOUT)) {
+                                it.remove();
+                            }
+                        }
+
+                        // Packages on screen go first.
+                        for (int i=0; i<mPrioritySizePkgs.size()
+                                && mComputingSizePkgs.size() < SIZE_FETCH_WIDTH; i++) {
+                            AppEntry entry = mEntriesMap.get(mPrioritySizePkgs.get(i));
+                            if (entry != null && canRequestSizeLocked(entry, now)) {
+                                requestSizeLocked(entry, now);
+                            }
                         }
 
-                        long now = SystemClock.uptimeMillis();
+                        boolean pending = false;
                         for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
                             if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
+                                pending = true;
+                                if (mComputingSizePkgs.size() >= SIZE_FETCH_WIDTH) {
+                                    break;
+                                }
+                                if (canRequestSizeLocked(entry, now)) {
+                                    requestSizeLocked(entry, now);
                                 }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
                             }
                         }
+                        if (pending) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
+                        }
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
@@ -1048,11 +1561,41 @@ public class ApplicationsState {
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
                         }
+                        if (mSnapshotDirty) {
+                            mSnapshotDirty = false;
+                            snapshotEntries = new ArrayList<AppEntry>(mAppEntries);
+                            snapshotConfig = mSnapshotConfig;
+                        }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    if (snapshotEntries != null) {
+                        mSnapshot.write(snapshotConfig, snapshotEntries);
+                    }
                 } break;
             }
         }
 
+        private boolean canRequestSizeLocked(AppEntry entry, long now) {
+            if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+                return false;
+            }
+            if (mComputingSizePkgs.contains(entry.info.packageName)) {
+                return false;
+            }
+            return entry.sizeLoadStart == 0
+                    || entry.sizeLoadStart < (now-SIZE_REQUEST_TIMEOUT);
+        }
+
+        private void requestSizeLocked(AppEntry entry, long now) {
+            if (!mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            entry.sizeLoadStart = now;
+            mComputingSizePkgs.add(entry.info.packageName);
+            mPm.getPackageSizeInfo(entry.info.packageName, mStatsObserver);
+        }
     }
 }
@@ -646,6 +646,11 @@ public class InstalledAppDetails extends Fragment
     public void onRebuildComplete(ArrayList<AppEntry> apps) {
     }
 
+    @Override
+    public void onEntriesChanged(ArrayList<AppEntry> apps, ArrayList<AppEntry> added,
+            ArrayList<AppEntry> removed, ArrayList<AppEntry> moved) {
+    }
+
     @Override
     public void onPackageSizeChanged(String packageName) {
         if (packageName.equals(mAppEntry.info.packageName)) {
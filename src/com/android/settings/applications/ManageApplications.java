@@ -80,6 +80,8 @@ import com.android.settings.Utils;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 final class CanBeOnSdCardChecker {
@@ -553,6 +555,22 @@ public class ManageApplications extends Fragment implements
         private int mWhichSize = SIZE_TOTAL;
         CharSequence mCurFilterPrefix;
 
+        // Prefix search state.  Used from both the filter thread and the
+        // main thread, so synchronized on mSearchLock.
+        private final Object mSearchLock = new Object();
+        private AppSearchIndex.Query mLastQuery;
+        private ArrayList<ApplicationsState.AppEntry> mPositionsBase;
+        private final HashMap<ApplicationsState.AppEntry, Integer> mPositions
+                = new HashMap<ApplicationsState.AppEntry, Integer>();
+        private final Comparator<ApplicationsState.AppEntry> mPositionComparator
+                = new Comparator<ApplicationsState.AppEntry>() {
+            @Override
+            public int compare(ApplicationsState.AppEntry object1,
+                    ApplicationsState.AppEntry object2) {
+                return mPositions.get(object1) - mPositions.get(object2);
+            }
+        };
+
         private Filter mFilter = new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
@@ -576,6 +594,7 @@ public class ManageApplications extends Fragment implements
         public ApplicationsAdapter(ApplicationsState state, TabInfo tab, int filterMode) {
             mState = state;
             mSession = state.newSession(this);
+            mSession.setIncremental(true);
             mTab = tab;
             mContext = tab.mOwner.getActivity();
             mFilterMode = filterMode;
@@ -688,17 +707,29 @@ public class ManageApplications extends Fragment implements
                 return origEntries;
             } else {
                 String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
+                HashSet<ApplicationsState.AppEntry> matches
+                        = new HashSet<ApplicationsState.AppEntry>();
+                synchronized (mSearchLock) {
+                    // As the user keeps typing, each query only looks at
+                    // what the previous one matched.
+                    mLastQuery = mState.searchEntries(prefixStr, mLastQuery, matches);
+                    if (mPositionsBase != origEntries) {
+                        mPositions.clear();
+                        for (int i=0; i<origEntries.size(); i++) {
+                            mPositions.put(origEntries.get(i), i);
+                        }
+                        mPositionsBase = origEntries;
                     }
+                    ArrayList<ApplicationsState.AppEntry> newEntries
+                            = new ArrayList<ApplicationsState.AppEntry>(matches.size());
+                    for (ApplicationsState.AppEntry entry : matches) {
+                        if (mPositions.containsKey(entry)) {
+                            newEntries.add(entry);
+                        }
+                    }
+                    Collections.sort(newEntries, mPositionComparator);
+                    return newEntries;
                 }
-                return newEntries;
             }
         }
 
@@ -724,9 +755,24 @@ public class ManageApplications extends Fragment implements
             mTab.updateStorageUsage();
         }
 
+        @Override
+        public void onEntriesChanged(ArrayList<AppEntry> apps, ArrayList<AppEntry> added,
+                ArrayList<AppEntry> removed, ArrayList<AppEntry> moved) {
+            if (mWaitingForData) {
+                // The pending rebuild will deliver the complete list.
+                return;
+            }
+            mBaseEntries = apps;
+            mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+            // Item ids are stable, so the list view keeps its position and
+            // only rebinds the rows that changed.
+            notifyDataSetChanged();
+            mTab.updateStorageUsage();
+        }
+
         @Override
         public void onPackageListChanged() {
-            rebuild(false);
+            // Additions and removals arrive through onEntriesChanged().
         }
 
         @Override
@@ -743,14 +789,8 @@ public class ManageApplications extends Fragment implements
                     synchronized (holder.entry) {
                         holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                     }
-                    if (holder.entry.info.packageName.equals(mTab.mOwner.mCurrentPkgName)
-                            && mLastSortMode == SORT_ORDER_SIZE) {
-                        // We got the size information for the last app the
-                        // user viewed, and are sorting by size...  they may
-                        // have cleared data, so we immediately want to resort
-                        // the list with the new size to reflect it to the user.
-                        rebuild(false);
-                    }
+                    // If sorting by size, the session moves the entry to
+                    // its new position through onEntriesChanged().
                     mTab.updateStorageUsage();
                     return;
                 }
@@ -759,11 +799,13 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onAllSizesComputed() {
-            if (mLastSortMode == SORT_ORDER_SIZE) {
-                rebuild(false);
-            }
             mTab.updateStorageUsage();
         }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
         
         public int getCount() {
             return mEntries != null ? mEntries.size() : 0;
@@ -816,6 +858,9 @@ public class ManageApplications extends Fragment implements
                     holder.checkBox.setVisibility(View.GONE);
                 }
             }
+            if (entry.size == ApplicationsState.SIZE_UNKNOWN || entry.sizeStale) {
+                mState.prioritizeSize(entry.info.packageName);
+            }
             mActive.remove(convertView);
             mActive.add(convertView);
             return convertView;
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManagerNative;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.internal.util.MemInfoReader;
+
+/**
+ * Samples memory use for {@link RunningState}: the PSS of the processes it
+ * tracks and the system totals from /proc/meminfo.  Each process keeps its
+ * last PSS value for a configurable time, and all processes whose value
+ * expired are queried together in a single call.
+ *
+ * <p>Only used from the RunningState background thread.
+ */
+class ProcessMemorySampler {
+    static final long DEFAULT_MAX_SAMPLE_AGE = 4000;
+
+    static final class Sample {
+        long pss;
+        long time;
+    }
+
+    final MemInfoReader mMemInfoReader = new MemInfoReader();
+    final SparseArray<Sample> mSamples = new SparseArray<Sample>();
+    long mMaxSampleAge = DEFAULT_MAX_SAMPLE_AGE;
+
+    // Totals from the last readMemInfo(), in bytes.
+    long mTotalSize;
+    long mFreeSize;
+    long mCachedSize;
+
+    /**
+     * Sets how long a process's PSS value is reused before it is queried
+     * again.
+     */
+    void setMaxSampleAge(long maxSampleAge) {
+        mMaxSampleAge = maxSampleAge;
+    }
+
+    /**
+     * Returns the PSS in kilobytes of each of the given processes, in the
+     * same order.  Samples of processes that are not in pids are dropped.
+     */
+    long[] samplePss(int[] pids) throws RemoteException {
+        final long now = SystemClock.uptimeMillis();
+        final long[] result = new long[pids.length];
+
+        // First find out which processes need a fresh value.
+        int numStale = 0;
+        for (int i=0; i<pids.length; i++) {
+            Sample sample = mSamples.get(pids[i]);
+            if (sample == null || (now - sample.time) >= mMaxSampleAge) {
+                numStale++;
+            }
+        }
+        if (numStale > 0) {
+            final int[] stalePids = new int[numStale];
+            int j = 0;
+            for (int i=0; i<pids.length; i++) {
+                Sample sample = mSamples.get(pids[i]);
+                if (sample == null || (now - sample.time) >= mMaxSampleAge) {
+                    stalePids[j++] = pids[i];
+                }
+            }
+            final long[] pss = ActivityManagerNative.getDefault().getProcessPss(stalePids);
+            for (int i=0; i<stalePids.length; i++) {
+                Sample sample = mSamples.get(stalePids[i]);
+                if (sample == null) {
+                    sample = new Sample();
+                    mSamples.put(stalePids[i], sample);
+                }
+                sample.pss = pss[i];
+                sample.time = now;
+            }
+        }
+
+        final SparseArray<Sample> current = new SparseArray<Sample>(pids.length);
+        for (int i=0; i<pids.length; i++) {
+            Sample sample = mSamples.get(pids[i]);
+            result[i] = sample.pss;
+            current.put(pids[i], sample);
+        }
+        mSamples.clear();
+        for (int i=0; i<current.size(); i++) {
+            mSamples.put(current.keyAt(i), current.valueAt(i));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the system memory totals from /proc/meminfo.
+     */
+    void readMemInfo() {
+        mMemInfoReader.readMemInfo();
+        mTotalSize = mMemInfoReader.getTotalSize();
+        mFreeSize = mMemInfoReader.getFreeSize();
+        mCachedSize = mMemInfoReader.getCachedSize();
+    }
+
+    /**
+     * Forgets all samples, so the next call queries every process.
+     */
+    void clear() {
+        mSamples.clear();
+    }
+}
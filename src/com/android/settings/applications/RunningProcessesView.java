@@ -16,7 +16,6 @@
 
 package com.android.settings.applications;
 
-import com.android.internal.util.MemInfoReader;
 import com.android.settings.R;
 
 import android.app.ActivityManager;
@@ -85,7 +84,6 @@ public class RunningProcessesView extends FrameLayout
     
     Dialog mCurDialog;
 
-    MemInfoReader mMemInfoReader = new MemInfoReader();
 
     public static class ActiveItem {
         View mRootView;
@@ -325,16 +323,16 @@ public class RunningProcessesView extends FrameLayout
             mDataAvail = null;
         }
 
-        // This is the amount of available memory until we start killing
-        // background services.
-        mMemInfoReader.readMemInfo();
-        long availMem = mMemInfoReader.getFreeSize() + mMemInfoReader.getCachedSize()
-                - SECONDARY_SERVER_MEM;
-        if (availMem < 0) {
-            availMem = 0;
-        }
-
         synchronized (mState.mLock) {
+            // This is the amount of available memory until we start killing
+            // background services.  Read from the state's last sample, so
+            // no memory accounting happens on this thread.
+            long availMem = mState.mFreeMemory + mState.mCachedMemory
+                    - SECONDARY_SERVER_MEM;
+            if (availMem < 0) {
+                availMem = 0;
+            }
+
             if (mLastNumBackgroundProcesses != mState.mNumBackgroundProcesses
                     || mLastBackgroundProcessMemory != mState.mBackgroundProcessMemory
                     || mLastAvailMemory != availMem) {
@@ -346,7 +344,7 @@ public class RunningProcessesView extends FrameLayout
                 mBackgroundProcessText.setText(getResources().getString(
                         R.string.service_background_processes, sizeStr));
                 sizeStr = Formatter.formatShortFileSize(getContext(),
-                        mMemInfoReader.getTotalSize() - freeMem);
+                        mState.mTotalMemory - freeMem);
                 mForegroundProcessText.setText(getResources().getString(
                         R.string.service_foreground_processes, sizeStr));
             }
@@ -366,7 +364,7 @@ public class RunningProcessesView extends FrameLayout
                 */
             }
             
-            float totalMem = mMemInfoReader.getTotalSize();
+            float totalMem = mState.mTotalMemory;
             float totalShownMem = availMem + mLastBackgroundProcessMemory
                     + mLastServiceProcessMemory;
             mColorBar.setRatios((totalMem-totalShownMem)/totalMem,
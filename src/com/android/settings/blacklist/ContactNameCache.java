@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.blacklist;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Contact names of blacklisted numbers, keyed by the number in E.164 form
+ * where it can be normalized.  Names are looked up on a background thread,
+ * in batches of one contacts query for all numbers requested together, and
+ * are forgotten whenever the contacts change.
+ */
+class ContactNameCache {
+    /** Most numbers passed as arguments to a single query. */
+    private static final int MAX_BATCH = 100;
+
+    /** Trailing digits numbers are loosely matched on, as in PhoneLookup. */
+    private static final int MIN_MATCH = 7;
+
+    private static final int MSG_LOOKUP = 1;
+    private static final int MSG_RESOLVED = 2;
+
+    interface Listener {
+        /** Called on the main thread when names were resolved or dropped. */
+        void onContactNamesChanged();
+    }
+
+    private static ContactNameCache sInstance;
+
+    static synchronized ContactNameCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactNameCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mQueryHandler;
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    // Names by key, "" when the number has no contact.  Guarded by this.
+    private final HashMap<String, String> mNames = new HashMap<String, String>();
+    // Numbers waiting for a lookup, and the last one queued, by key.
+    // Guarded by this.
+    private HashMap<String, String> mPending = new HashMap<String, String>();
+    // Bumped when the contacts change, so lookups already underway are dropped.
+    private int mGeneration;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            for (Listener listener : new ArrayList<Listener>(mListeners)) {
+                listener.onContactNamesChanged();
+            }
+        }
+    };
+
+    private ContactNameCache(Context context) {
+        mResolver = context.getContentResolver();
+
+        HandlerThread thread = new HandlerThread("blacklist_contact_query",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mQueryHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                lookupPending();
+            }
+        };
+
+        mResolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true,
+                new ContentObserver(mQueryHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        synchronized (ContactNameCache.this) {
+                            mNames.clear();
+                            mGeneration++;
+                        }
+                        mMainHandler.sendEmptyMessage(MSG_RESOLVED);
+                    }
+                });
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Return the contact name of the given number, "" if it has none, or
+     * {@code null} if it's not known yet, in which case it is looked up and
+     * listeners are told once it is.
+     */
+    synchronized String getName(String number, String countryIso) {
+        final String key = normalize(number, countryIso);
+        final String name = mNames.get(key);
+        if (name == null && !mPending.containsKey(key)) {
+            mPending.put(key, number);
+            // one message picks up everything requested until it runs,
+            // such as all rows bound in a layout pass
+            if (!mQueryHandler.hasMessages(MSG_LOOKUP)) {
+                mQueryHandler.sendEmptyMessage(MSG_LOOKUP);
+            }
+        }
+        return name;
+    }
+
+    private static String normalize(String number, String countryIso) {
+        if (!TextUtils.isEmpty(countryIso)) {
+            // PhoneLookup and normalized numbers don't take a country code
+            // as an input, so work it in here.
+            String numberE164 = PhoneNumberUtils.formatNumberToE164(number, countryIso);
+            if (!TextUtils.isEmpty(numberE164)) {
+                return numberE164;
+            }
+        }
+        return number;
+    }
+
+    private void lookupPending() {
+        final HashMap<String, String> pending;
+        final int generation;
+        synchronized (this) {
+            pending = mPending;
+            mPending = new HashMap<String, String>();
+            generation = mGeneration;
+        }
+
+        final HashMap<String, String> names = new HashMap<String, String>();
+        final ArrayList<String> batch = new ArrayList<String>();
+        for (String key : pending.keySet()) {
+            if (key.startsWith("+")) {
+                batch.add(key);
+                if (batch.size() == MAX_BATCH) {
+                    lookupBatch(batch, names);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            lookupBatch(batch, names);
+        }
+
+        // Numbers that couldn't be normalized, or whose normalized form
+        // matched no contact, are loosely matched like PhoneLookup does, so
+        // contacts stored without a country code or in another format are
+        // found as well.  Candidates sharing their trailing digits are
+        // fetched in batches and compared here.
+        final HashMap<String, String> loose = new HashMap<String, String>();
+        final ArrayList<String> wildcards = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : pending.entrySet()) {
+            final String key = entry.getKey();
+            if (names.containsKey(key)) continue;
+            if (entry.getValue().indexOf('*') >= 0) {
+                wildcards.add(key);
+                continue;
+            }
+            loose.put(key, entry.getValue());
+            if (loose.size() == MAX_BATCH) {
+                lookupLooseBatch(loose, names);
+                loose.clear();
+            }
+        }
+        if (!loose.isEmpty()) {
+            lookupLooseBatch(loose, names);
+        }
+
+        // Wildcard entries have no trailing digits to match on, so leave
+        // them to PhoneLookup one at a time.
+        for (String key : wildcards) {
+            final String name = lookupSingle(pending.get(key));
+            if (name != null) {
+                names.put(key, name);
+            }
+        }
+
+        for (String key : pending.keySet()) {
+            if (!names.containsKey(key)) {
+                names.put(key, "");
+            }
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mNames.putAll(names);
+            }
+        }
+        mMainHandler.sendEmptyMessage(MSG_RESOLVED);
+    }
+
+    private void lookupBatch(ArrayList<String> numbers, HashMap<String, String> names) {
+        final StringBuilder selection = new StringBuilder(Phone.NORMALIZED_NUMBER + " IN (");
+        for (int i = 0; i < numbers.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(")");
+
+        final String[] projection = new String[] {
+            Phone.NORMALIZED_NUMBER, Phone.DISPLAY_NAME
+        };
+        final Cursor cursor = mResolver.query(Phone.CONTENT_URI, projection,
+                selection.toString(), numbers.toArray(new String[numbers.size()]), null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final String name = cursor.getString(1);
+                if (!TextUtils.isEmpty(name)) {
+                    names.put(cursor.getString(0), name);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void lookupLooseBatch(HashMap<String, String> numbers,
+            HashMap<String, String> names) {
+        // Stored numbers keep their formatting, so allow anything between
+        // the trailing digits; candidates are compared properly below.
+        final StringBuilder selection = new StringBuilder();
+        final String[] selectionArgs = new String[numbers.size()];
+        int i = 0;
+        for (String number : numbers.values()) {
+            final String digits = getTrailingDigits(number);
+            final StringBuilder pattern = new StringBuilder();
+            for (int j = 0; j < digits.length(); j++) {
+                pattern.append('%').append(digits.charAt(j));
+            }
+            selection.append(i == 0 ? "" : " OR ").append(Phone.NUMBER + " LIKE ?");
+            selectionArgs[i++] = pattern.toString();
+        }
+
+        final String[] projection = new String[] {
+            Phone.NUMBER, Phone.DISPLAY_NAME
+        };
+        final Cursor cursor = mResolver.query(Phone.CONTENT_URI, projection,
+                selection.toString(), selectionArgs, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final String candidate = cursor.getString(0);
+                final String name = cursor.getString(1);
+                if (TextUtils.isEmpty(name)) continue;
+                for (Map.Entry<String, String> entry : numbers.entrySet()) {
+                    if (!names.containsKey(entry.getKey())
+                            && PhoneNumberUtils.compare(entry.getValue(), candidate)) {
+                        names.put(entry.getKey(), name);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String getTrailingDigits(String number) {
+        final StringBuilder digits = new StringBuilder();
+        for (int i = number.length() - 1; i >= 0 && digits.length() < MIN_MATCH; i--) {
+            final char c = number.charAt(i);
+            if (Character.isDigit(c)) {
+                digits.append(c);
+            }
+        }
+        return digits.reverse().toString();
+    }
+
+    private String lookupSingle(String number) {
+        String result = null;
+        final String[] projection = new String[] { PhoneLookup.DISPLAY_NAME };
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+        Cursor cursor = mResolver.query(uri, projection, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                result = cursor.getString(0);
+            }
+            cursor.close();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.carbon;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+//
+// Shared monitor of the current frequency of every CPU core
+//
+public class CpuFreqMonitor {
+
+    private static final String TAG = "CpuFreqMonitor";
+
+    private static final String CPU_DIR = "/sys/devices/system/cpu";
+    private static final String SCALE_CUR_FILE = "cpufreq/scaling_cur_freq";
+    private static final String FREQINFO_CUR_FILE = "cpufreq/cpuinfo_cur_freq";
+
+    public static final long DEFAULT_POLL_INTERVAL = 500;
+
+    private static final int MSG_POLL = 1;
+
+    /**
+     * Receives frequency changes on the thread that subscribed.  The
+     * frequency is the raw kHz value from sysfs, or null while the core is
+     * offline.
+     */
+    public interface Listener {
+        public void onCpuFreqChanged(int cpu, String freq);
+    }
+
+    private static CpuFreqMonitor sInstance;
+
+    public static synchronized CpuFreqMonitor getInstance() {
+        if (sInstance == null) {
+            sInstance = new CpuFreqMonitor();
+        }
+        return sInstance;
+    }
+
+    private static class Subscriber {
+        final Listener listener;
+        final Handler handler;
+
+        Subscriber(Listener listener, Handler handler) {
+            this.listener = listener;
+            this.handler = handler;
+        }
+    }
+
+    private static class Core {
+        final File[] files;
+        RandomAccessFile file;
+        String freq;
+
+        Core(int cpu) {
+            final File dir = new File(CPU_DIR, "cpu" + cpu);
+            files = new File[] {
+                    new File(dir, SCALE_CUR_FILE), new File(dir, FREQINFO_CUR_FILE) };
+        }
+    }
+
+    private final ArrayList<Subscriber> mSubscribers = new ArrayList<Subscriber>();
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(32);
+
+    private Core[] mCores;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private long mPollInterval = DEFAULT_POLL_INTERVAL;
+
+    private CpuFreqMonitor() {
+    }
+
+    public static int getCoreCount() {
+        final File[] files = new File(CPU_DIR).listFiles();
+        int count = 0;
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().matches("cpu[0-9]+")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public synchronized void setPollInterval(long interval) {
+        mPollInterval = interval;
+    }
+
+    /**
+     * Start delivering changes to the given listener on the calling thread,
+     * which must have a looper.  The current frequency of every core is
+     * delivered right away.
+     */
+    public synchronized void addListener(Listener listener) {
+        final Subscriber subscriber = new Subscriber(listener, new Handler());
+        mSubscribers.add(subscriber);
+
+        if (mThread == null) {
+            start();
+        } else {
+            for (int i = 0; i < mCores.length; i++) {
+                if (mCores[i].freq != null) {
+                    deliver(subscriber, i, mCores[i].freq);
+                }
+            }
+        }
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        for (int i = mSubscribers.size() - 1; i >= 0; i--) {
+            final Subscriber subscriber = mSubscribers.get(i);
+            if (subscriber.listener == listener) {
+                subscriber.handler.removeCallbacksAndMessages(null);
+                mSubscribers.remove(i);
+            }
+        }
+        if (mSubscribers.isEmpty() && mThread != null) {
+            stop();
+        }
+    }
+
+    private void start() {
+        mCores = new Core[getCoreCount()];
+        for (int i = 0; i < mCores.length; i++) {
+            mCores[i] = new Core(i);
+        }
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new PollHandler(mThread.getLooper());
+        mHandler.sendEmptyMessage(MSG_POLL);
+    }
+
+    private void stop() {
+        mHandler.removeMessages(MSG_POLL);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+        for (Core core : mCores) {
+            closeQuietly(core);
+        }
+        mCores = null;
+    }
+
+    private class PollHandler extends Handler {
+        PollHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            synchronized (CpuFreqMonitor.this) {
+                // stale message from a monitor that was stopped
+                if (mHandler != this) return;
+
+                for (int i = 0; i < mCores.length; i++) {
+                    final Core core = mCores[i];
+                    final String freq = read(core);
+                    if (freq == null ? core.freq != null : !freq.equals(core.freq)) {
+                        core.freq = freq;
+                        for (Subscriber subscriber : mSubscribers) {
+                            deliver(subscriber, i, freq);
+                        }
+                    }
+                }
+                sendEmptyMessageDelayed(MSG_POLL, mPollInterval);
+            }
+        }
+    }
+
+    private static void deliver(final Subscriber subscriber, final int cpu, final String freq) {
+        subscriber.handler.post(new Runnable() {
+            public void run() {
+                subscriber.listener.onCpuFreqChanged(cpu, freq);
+            }
+        });
+    }
+
+    /**
+     * Re-read the frequency of the given core from offset zero of its open
+     * file, opening it first if needed.  Cores that are offline have no
+     * cpufreq directory, so a failed read closes the file to be reopened on
+     * a later poll.
+     */
+    private String read(Core core) {
+        if (core.file == null) {
+            for (File file : core.files) {
+                if (!file.canRead()) continue;
+                try {
+                    core.file = new RandomAccessFile(file, "r");
+                    break;
+                } catch (IOException e) {
+                    // try the next candidate
+                }
+            }
+            if (core.file == null) return null;
+        }
+
+        try {
+            final FileChannel channel = core.file.getChannel();
+            mBuffer.clear();
+            final int len = channel.read(mBuffer, 0);
+            if (len <= 0) {
+                closeQuietly(core);
+                return null;
+            }
+            int end = len;
+            while (end > 0 && Character.isWhitespace(mBuffer.get(end - 1))) {
+                end--;
+            }
+            return new String(mBuffer.array(), 0, end);
+        } catch (IOException e) {
+            Log.w(TAG, "problem reading cpu frequency", e);
+            closeQuietly(core);
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Core core) {
+        if (core.file == null) return;
+        try {
+            core.file.close();
+        } catch (IOException e) {
+        }
+        core.file = null;
+    }
+}
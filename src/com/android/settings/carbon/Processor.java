@@ -17,8 +17,6 @@
 package com.android.settings.carbon;
 
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceScreen;
@@ -60,35 +58,16 @@ public class Processor extends SettingsPreferenceFragment implements
     private ListPreference mMinFrequencyPref;
     private ListPreference mMaxFrequencyPref;
 
-    private class CurCPUThread extends Thread {
-        private boolean mInterrupt = false;
+    private boolean mMonitorCurFreq = false;
 
-        public void interrupt() {
-            mInterrupt = true;
-        }
-
-        @Override
-        public void run() {
-            try {
-                while (!mInterrupt) {
-                    sleep(500);
-                    final String curFreq = Utils.fileReadOneLine(FREQ_CUR_FILE);
-                    if (curFreq != null)
-                        mCurCPUHandler.sendMessage(mCurCPUHandler.obtainMessage(0, curFreq));
-                }
-            } catch (InterruptedException e) {
+    private CpuFreqMonitor.Listener mCurCPUListener = new CpuFreqMonitor.Listener() {
+        public void onCpuFreqChanged(int cpu, String freq) {
+            if (cpu == 0 && freq != null) {
+                mCurFrequencyPref.setSummary(toMHz(freq));
             }
         }
     };
 
-    private CurCPUThread mCurCPUThread = new CurCPUThread();
-
-    private Handler mCurCPUHandler = new Handler() {
-        public void handleMessage(Message msg) {
-            mCurFrequencyPref.setSummary(toMHz((String) msg.obj));
-        }
-    };
-
     private void initFreqCapFiles()
     {
         if (freqCapFilesInitialized) return;
@@ -187,7 +166,7 @@ public class Processor extends SettingsPreferenceFragment implements
         } else {
             mCurFrequencyPref.setSummary(toMHz(temp));
 
-            mCurCPUThread.start();
+            mMonitorCurFreq = true;
         }
     }
 
@@ -212,15 +191,17 @@ public class Processor extends SettingsPreferenceFragment implements
         if (Utils.fileExists(GOV_FILE) && (temp = Utils.fileReadOneLine(GOV_FILE)) != null) {
             mGovernorPref.setSummary(String.format(mGovernorFormat, temp));
         }
+
+        if (mMonitorCurFreq) {
+            CpuFreqMonitor.getInstance().addListener(mCurCPUListener);
+        }
     }
 
     @Override
-    public void onDestroy() {
-        super.onDestroy();
-        mCurCPUThread.interrupt();
-        try {
-            mCurCPUThread.join();
-        } catch (InterruptedException e) {
+    public void onPause() {
+        super.onPause();
+        if (mMonitorCurFreq) {
+            CpuFreqMonitor.getInstance().removeListener(mCurCPUListener);
         }
     }
 
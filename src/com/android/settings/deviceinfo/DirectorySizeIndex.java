@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.content.Context;
+
+import com.android.settings.SnapshotFile;
+import com.google.android.collect.Maps;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Persistent index of directory sizes measured by {@link StorageMeasurement},
+ * keyed by path.  Each size is stored with a signature built from the
+ * modification times of the directory and its immediate subdirectories, and
+ * is reused while that signature is unchanged and the size is younger than
+ * the maximum age.
+ * <p>
+ * Directory modification times only move when entries are added, removed
+ * or renamed, and only one level deep, so callers keep signatures shallow
+ * by caching each subtree below a few levels under its own path instead of
+ * whole trees.  Files growing in place, or changes deeper than a subtree's
+ * signature reaches, still go unnoticed until the maximum age passes or
+ * {@link #remove(String)} is called for an ancestor.
+ * <p>
+ * Separately, the index remembers the last total measured for each
+ * directory a measurement reports on, so it can be shown while the next
+ * measurement runs.  Totals are never reused as measurements themselves.
+ */
+class DirectorySizeIndex {
+    private static final String FILE_NAME = "directory_sizes";
+    private static final int VERSION = 2;
+
+    /** Sizes don't depend on the configuration. */
+    private static final String CONFIG_KEY = "";
+
+    public static final long DEFAULT_MAX_AGE = 6 * HOUR_IN_MILLIS;
+
+    /** How long a total is shown for when it isn't measured again. */
+    private static final long MAX_TOTAL_AGE = 7 * DAY_IN_MILLIS;
+
+    private static DirectorySizeIndex sInstance;
+
+    public static synchronized DirectorySizeIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DirectorySizeIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private static class Entry {
+        long signature;
+        long size;
+        long measuredTime;
+    }
+
+    private final SnapshotFile mFile;
+
+    @GuardedBy("this")
+    private final HashMap<String, Entry> mEntries = Maps.newHashMap();
+    @GuardedBy("this")
+    private final HashMap<String, Entry> mTotals = Maps.newHashMap();
+    @GuardedBy("this")
+    private boolean mLoaded;
+    @GuardedBy("this")
+    private boolean mDirty;
+
+    private volatile long mMaxAge = DEFAULT_MAX_AGE;
+
+    private DirectorySizeIndex(Context context) {
+        mFile = new SnapshotFile(context, FILE_NAME, VERSION);
+    }
+
+    public void setMaxAge(long maxAge) {
+        mMaxAge = maxAge;
+    }
+
+    /**
+     * Build the signature of the given directory, or return 0 when it
+     * cannot be read from this process, in which case it is never cached.
+     */
+    public static long getSignature(File dir) {
+        final long modified = dir.lastModified();
+        if (modified == 0) return 0;
+
+        long signature = modified;
+        final File[] children = dir.listFiles();
+        if (children != null) {
+            signature = 31 * signature + children.length;
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    signature = 31 * signature + child.lastModified();
+                }
+            }
+        }
+        return signature != 0 ? signature : 1;
+    }
+
+    /**
+     * Return the cached size of the given directory if it still matches the
+     * given signature, or -1 if it needs to be measured again.
+     */
+    public synchronized long getSize(String path, long signature) {
+        ensureLoadedLocked();
+        if (signature == 0) return -1;
+
+        final Entry entry = mEntries.get(path);
+        if (entry == null) return -1;
+        if (entry.signature != signature
+                || System.currentTimeMillis() - entry.measuredTime > mMaxAge) {
+            mEntries.remove(path);
+            mDirty = true;
+            return -1;
+        }
+        return entry.size;
+    }
+
+    public synchronized void putSize(String path, long signature, long size) {
+        ensureLoadedLocked();
+        if (signature == 0) return;
+
+        final Entry entry = new Entry();
+        entry.signature = signature;
+        entry.size = size;
+        entry.measuredTime = System.currentTimeMillis();
+        mEntries.put(path, entry);
+        mDirty = true;
+    }
+
+    /**
+     * Remember the total just measured under the given key, usually the
+     * path of a directory, to show before it is measured again.
+     */
+    public synchronized void putTotal(String key, long size) {
+        ensureLoadedLocked();
+        final Entry entry = new Entry();
+        entry.size = size;
+        entry.measuredTime = System.currentTimeMillis();
+        mTotals.put(key, entry);
+        mDirty = true;
+    }
+
+    /**
+     * Return the last total measured under the given key, or -1 if there is
+     * none.  It may be out of date.
+     */
+    public synchronized long getTotal(String key) {
+        ensureLoadedLocked();
+        final Entry entry = mTotals.get(key);
+        return entry != null ? entry.size : -1;
+    }
+
+    /**
+     * Return when the total under the given key was last measured, or 0 if
+     * there is none.
+     */
+    public synchronized long getMeasuredTime(String key) {
+        ensureLoadedLocked();
+        final Entry entry = mTotals.get(key);
+        return entry != null ? entry.measuredTime : 0;
+    }
+
+    /**
+     * Forget the given directory and everything below it.
+     */
+    public synchronized void remove(String path) {
+        ensureLoadedLocked();
+        removeLocked(mEntries, path);
+        removeLocked(mTotals, path);
+    }
+
+    private void removeLocked(HashMap<String, Entry> entries, String path) {
+        final String prefix = path.endsWith("/") ? path : path + "/";
+        final Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            final String key = it.next();
+            if (key.equals(path) || key.startsWith(prefix)) {
+                it.remove();
+                mDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Write the index to disk if it changed, dropping expired entries.
+     * Performs I/O, so call off the main thread.
+     */
+    public synchronized void writeIfDirty() {
+        if (!mDirty) return;
+
+        final long now = System.currentTimeMillis();
+        expireLocked(mEntries, now - mMaxAge);
+        expireLocked(mTotals, now - MAX_TOTAL_AGE);
+
+        final boolean written = mFile.write(CONFIG_KEY, new SnapshotFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                writeEntries(out, mEntries);
+                writeEntries(out, mTotals);
+            }
+        });
+        if (written) {
+            mDirty = false;
+        }
+    }
+
+    private static void expireLocked(HashMap<String, Entry> entries, long cutoff) {
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().measuredTime < cutoff) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void writeEntries(DataOutputStream out, HashMap<String, Entry> entries)
+            throws IOException {
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().signature);
+            out.writeLong(entry.getValue().size);
+            out.writeLong(entry.getValue().measuredTime);
+        }
+    }
+
+    private static void readEntries(DataInputStream in, HashMap<String, Entry> entries)
+            throws IOException {
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final String key = in.readUTF();
+            final Entry entry = new Entry();
+            entry.signature = in.readLong();
+            entry.size = in.readLong();
+            entry.measuredTime = in.readLong();
+            entries.put(key, entry);
+        }
+    }
+
+    private void ensureLoadedLocked() {
+        if (mLoaded) return;
+        mLoaded = true;
+
+        final boolean loaded = mFile.read(CONFIG_KEY, new SnapshotFile.Reader() {
+            @Override
+            public void read(DataInputStream in) throws IOException {
+                readEntries(in, mEntries);
+                readEntries(in, mTotals);
+            }
+        });
+        if (!loaded) {
+            // missing, corrupt or from an older version; start over
+            mEntries.clear();
+            mTotals.clear();
+            mDirty = true;
+        }
+    }
+}
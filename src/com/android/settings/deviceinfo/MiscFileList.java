@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Misc files found by {@link StorageMeasurement}, filled in chunks while the
+ * top level of external storage is being sized. Keeps the largest
+ * {@link #TOP_COUNT} files at hand so the first screen can be shown without
+ * sorting everything, and sorts the rest only when a caller pages past them.
+ * <p>
+ * Written from the measurement threads; listeners are called on the main
+ * thread.
+ */
+class MiscFileList {
+    /** Number of largest files tracked as they arrive. */
+    static final int TOP_COUNT = 32;
+
+    /** Number of files collected before listeners are told about them. */
+    private static final int CHUNK_SIZE = 16;
+
+    interface Listener {
+        void onMiscFilesChanged(MiscFileList list);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @GuardedBy("this")
+    private final ArrayList<FileInfo> mFiles = new ArrayList<FileInfo>();
+    @GuardedBy("this")
+    private final ArrayList<FileInfo> mPending = new ArrayList<FileInfo>();
+
+    /** Largest files so far, smallest first so it can be trimmed cheaply. */
+    @GuardedBy("this")
+    private final PriorityQueue<FileInfo> mTop = new PriorityQueue<FileInfo>(
+            TOP_COUNT + 1, Collections.reverseOrder());
+
+    @GuardedBy("this")
+    private ArrayList<FileInfo> mSorted;
+    @GuardedBy("this")
+    private long mTotalSize;
+    @GuardedBy("this")
+    private boolean mComplete;
+
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    private final Runnable mNotifyListeners = new Runnable() {
+        @Override
+        public void run() {
+            for (Listener listener : new ArrayList<Listener>(mListeners)) {
+                listener.onMiscFilesChanged(MiscFileList.this);
+            }
+        }
+    };
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public synchronized void add(FileInfo info) {
+        mPending.add(info);
+        if (mPending.size() >= CHUNK_SIZE) {
+            flushLocked();
+        }
+    }
+
+    /**
+     * Publish any pending files and mark the listing as complete.
+     */
+    public synchronized void finish() {
+        flushLocked();
+        mComplete = true;
+        notifyLocked();
+    }
+
+    public synchronized boolean isComplete() {
+        return mComplete;
+    }
+
+    public synchronized int getCount() {
+        return mFiles.size();
+    }
+
+    public synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Return up to {@code limit} of the largest files published so far, in
+     * descending order of size.
+     */
+    public synchronized List<FileInfo> getLargest(int limit) {
+        if (limit <= TOP_COUNT) {
+            final ArrayList<FileInfo> top = new ArrayList<FileInfo>(mTop);
+            Collections.sort(top);
+            return top.subList(0, Math.min(limit, top.size()));
+        }
+
+        if (mSorted == null) {
+            mSorted = new ArrayList<FileInfo>(mFiles);
+            Collections.sort(mSorted);
+        }
+        return new ArrayList<FileInfo>(mSorted.subList(0, Math.min(limit, mSorted.size())));
+    }
+
+    /**
+     * Forget the given files, such as after they were deleted.
+     */
+    public synchronized void removeAll(List<FileInfo> infos) {
+        boolean removedTop = false;
+        for (FileInfo info : infos) {
+            if (mFiles.remove(info)) {
+                mTotalSize -= info.mSize;
+                removedTop |= mTop.remove(info);
+            }
+        }
+        if (removedTop) {
+            // refill from the remaining files
+            mTop.clear();
+            for (FileInfo info : mFiles) {
+                offerTopLocked(info);
+            }
+        }
+        mSorted = null;
+        notifyLocked();
+    }
+
+    private void flushLocked() {
+        if (mPending.isEmpty()) return;
+
+        for (FileInfo info : mPending) {
+            mFiles.add(info);
+            mTotalSize += info.mSize;
+            offerTopLocked(info);
+        }
+        mPending.clear();
+        mSorted = null;
+        notifyLocked();
+    }
+
+    private void offerTopLocked(FileInfo info) {
+        mTop.offer(info);
+        if (mTop.size() > TOP_COUNT) {
+            mTop.poll();
+        }
+    }
+
+    private void notifyLocked() {
+        mHandler.removeCallbacks(mNotifyListeners);
+        mHandler.post(mNotifyListeners);
+    }
+}
@@ -18,10 +18,13 @@ package com.android.settings.deviceinfo;
 
 import android.app.Activity;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.UserHandle;
@@ -60,6 +63,7 @@ public class MiscFilesHandler extends ListActivity {
     private String mNumBytesSelectedFormat;
     private MemoryMearurementAdapter mAdapter;
     private LayoutInflater mInflater;
+    private DeleteJob mDeleteJob;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -76,7 +80,158 @@ public class MiscFilesHandler extends ListActivity {
         lv.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
         lv.setMultiChoiceModeListener(new ModeCallback(this));
         setListAdapter(mAdapter);
-    } 
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mDeleteJob != null) {
+            mDeleteJob.abort();
+        }
+        mAdapter.close();
+        super.onDestroy();
+    }
+
+    private void startDelete(ArrayList<FileInfo> files) {
+        if (mDeleteJob != null) {
+            // still busy with an earlier batch
+            return;
+        }
+        mDeleteJob = new DeleteJob(files);
+        mDeleteJob.start();
+    }
+
+    /**
+     * Deletes a batch of files over a single connection to the container
+     * service, off the main thread. Each file is removed from the list as
+     * soon as it is gone, and canceling the progress dialog stops the batch
+     * after the current file.  Files already deleted when the batch stops
+     * are still removed from the list.
+     */
+    private class DeleteJob extends AsyncTask<Void, FileInfo, Void> implements
+            ServiceConnection, DialogInterface.OnCancelListener {
+        private final ArrayList<FileInfo> mFiles;
+        private final ProgressDialog mDialog;
+
+        private volatile IMediaContainerService mContainer;
+        // Deleted but not yet removed from the list; guarded by itself.
+        private final ArrayList<FileInfo> mDeletedFiles = new ArrayList<FileInfo>();
+        private boolean mBound;
+        private int mDeleted;
+        private boolean mDone;
+
+        public DeleteJob(ArrayList<FileInfo> files) {
+            mFiles = files;
+            mDialog = new ProgressDialog(MiscFilesHandler.this);
+            mDialog.setTitle(R.string.misc_files_deleting);
+            mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mDialog.setMax(files.size());
+            mDialog.setCancelable(true);
+            mDialog.setCanceledOnTouchOutside(false);
+            mDialog.setOnCancelListener(this);
+        }
+
+        public void start() {
+            mDialog.show();
+            Intent service = new Intent().setComponent(
+                    StorageMeasurement.DEFAULT_CONTAINER_COMPONENT);
+            mBound = bindServiceAsUser(service, this, Context.BIND_AUTO_CREATE,
+                    new UserHandle(UserHandle.USER_OWNER));
+            if (!mBound) {
+                Log.w(TAG, "Unable to bind to container service");
+                cleanUp();
+            }
+        }
+
+        /**
+         * Stop after the file being deleted, if any, and dismiss the dialog.
+         */
+        public void abort() {
+            cancel(false);
+            cleanUp();
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            if (mDone) return;
+            mContainer = IMediaContainerService.Stub.asInterface(service);
+            executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // deleteFile() calls will fail and keep their rows
+        }
+
+        @Override
+        public void onCancel(DialogInterface dialog) {
+            abort();
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            for (FileInfo info : mFiles) {
+                if (isCancelled()) break;
+                if (StorageMeasurement.LOGV) {
+                    Log.i(TAG, "deleting: " + info);
+                }
+                try {
+                    mContainer.deleteFile(info.mFileName); // Works for file and directory
+                    synchronized (mDeletedFiles) {
+                        mDeletedFiles.add(info);
+                    }
+                    publishProgress(info);
+                } catch (Exception e) {
+                    Log.w(TAG, "Problem in container service", e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(FileInfo... infos) {
+            if (mDone) return;
+            mDeleted += infos.length;
+            mDialog.setProgress(mDeleted);
+            applyDeletions();
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            cleanUp();
+        }
+
+        @Override
+        protected void onCancelled(Void result) {
+            // pick up the file that was being deleted when aborted
+            applyDeletions();
+        }
+
+        /**
+         * Remove the rows of every file deleted so far.
+         */
+        private void applyDeletions() {
+            final ArrayList<FileInfo> deleted;
+            synchronized (mDeletedFiles) {
+                if (mDeletedFiles.isEmpty()) return;
+                deleted = new ArrayList<FileInfo>(mDeletedFiles);
+                mDeletedFiles.clear();
+            }
+            mAdapter.removeAll(deleted);
+            mAdapter.notifyDataSetChanged();
+        }
+
+        private void cleanUp() {
+            if (mDone) return;
+            applyDeletions();
+            mDone = true;
+            if (mBound) {
+                mBound = false;
+                unbindService(this);
+            }
+            mDialog.dismiss();
+            mDeleteJob = null;
+        }
+    }
 
     private class ModeCallback implements ListView.MultiChoiceModeListener {
         private int mDataCount;
@@ -88,6 +243,9 @@ public class MiscFilesHandler extends ListActivity {
         }
 
         public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            // keep positions stable while items are being checked
+            mAdapter.setFrozen(true);
+            mDataCount = mAdapter.getCount();
             final MenuInflater inflater = getMenuInflater();
             inflater.inflate(R.menu.misc_files_menu, menu);
             return true;
@@ -109,22 +267,18 @@ public class MiscFilesHandler extends ListActivity {
                             "checkedCount: " + checkedCount + ", dataSize: " + mDataCount);
                 }
                 if (mDataCount > 0) {
-                    ArrayList<Object> toRemove = new ArrayList<Object>();
+                    ArrayList<FileInfo> toDelete = new ArrayList<FileInfo>();
                     for (int i = 0; i < mDataCount; i++) {
                         if (!checkedItems.get(i)) {
                             //item not selected
                             continue;
                         }
-                        if (StorageMeasurement.LOGV) {
-                            Log.i(TAG, "deleting: " + mAdapter.getItem(i));
-                        }
-                        // delete the file
-                        new DeleteHandler(mAdapter.getItem(i).mFileName);
-                        toRemove.add(mAdapter.getItem(i));
+                        toDelete.add(mAdapter.getItem(i));
+                    }
+                    // rows are removed as each file is deleted
+                    if (!toDelete.isEmpty()) {
+                        startDelete(toDelete);
                     }
-                    mAdapter.removeAll(toRemove);
-                    mAdapter.notifyDataSetChanged();
-                    mDataCount = mAdapter.getCount();
                 }
                 mode.finish();
                 break;
@@ -141,38 +295,8 @@ public class MiscFilesHandler extends ListActivity {
             return true;
         }
 
-        private class DeleteHandler {
-            private ServiceConnection mDefContainerConn = new ServiceConnection() {
-                @Override
-                public void onServiceConnected(ComponentName name, IBinder service) {
-                    final IMediaContainerService imcs = IMediaContainerService.Stub.asInterface(
-                            service);
-                    try {
-                        imcs.deleteFile(mPath); // Works for file and directory
-                    } catch (Exception e) {
-                        Log.w(TAG, "Problem in container service", e);
-                    }
-                    unbindService(mDefContainerConn);
-                }
-
-                @Override
-                public void onServiceDisconnected(ComponentName name) {
-                }
-            };
-
-            private String mPath;
-
-            public DeleteHandler(String path) {
-                mPath = path;
-                Intent service = new Intent().setComponent(
-                        StorageMeasurement.DEFAULT_CONTAINER_COMPONENT);
-                bindServiceAsUser(service, mDefContainerConn, Context.BIND_AUTO_CREATE,
-                        new UserHandle(UserHandle.USER_OWNER));
-            }
-        }
-
         public void onDestroyActionMode(ActionMode mode) {
-            // This block intentionally left blank
+            mAdapter.setFrozen(false);
         }
 
         public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
@@ -198,10 +322,17 @@ public class MiscFilesHandler extends ListActivity {
         }
     }
 
-    class MemoryMearurementAdapter extends BaseAdapter {
-        private ArrayList<StorageMeasurement.FileInfo> mData = null;
+    class MemoryMearurementAdapter extends BaseAdapter implements MiscFileList.Listener {
+        /** Files added to the list each time the user scrolls to its end. */
+        private static final int PAGE_SIZE = MiscFileList.TOP_COUNT;
+
+        private List<StorageMeasurement.FileInfo> mData = null;
         private long mDataSize = 0;
         private Context mContext;
+        private MiscFileList mFiles;
+        private int mLimit = PAGE_SIZE;
+        private boolean mFrozen;
+        private boolean mStale;
 
         public MemoryMearurementAdapter(Activity activity) {
             mContext = activity;
@@ -210,14 +341,65 @@ public class MiscFilesHandler extends ListActivity {
             StorageMeasurement mMeasurement = StorageMeasurement.getInstance(
                     activity, storageVolume);
             if (mMeasurement == null) return;
-            mData = (ArrayList<StorageMeasurement.FileInfo>) mMeasurement.mFileInfoForMisc;
-            if (mData != null) {
-                for (StorageMeasurement.FileInfo info : mData) {
-                    mDataSize += info.mSize;
-                }
+            mFiles = mMeasurement.mMiscFiles;
+            if (mFiles != null) {
+                mFiles.addListener(this);
+                updateData();
+            }
+        }
+
+        public void close() {
+            if (mFiles != null) {
+                mFiles.removeListener(this);
             }
         }
 
+        @Override
+        public void onMiscFilesChanged(MiscFileList list) {
+            if (mFrozen) {
+                mStale = true;
+                return;
+            }
+            updateData();
+            notifyDataSetChanged();
+        }
+
+        /**
+         * While frozen, newly sized files are held back so that positions
+         * checked in the list keep pointing at the same files.
+         */
+        public void setFrozen(boolean frozen) {
+            mFrozen = frozen;
+            if (!frozen && mStale) {
+                mStale = false;
+                updateData();
+                notifyDataSetChanged();
+            }
+        }
+
+        private void updateData() {
+            mData = mFiles.getLargest(mLimit);
+            mDataSize = mFiles.getTotalSize();
+        }
+
+        /**
+         * Page in the next files when the last loaded one is shown.
+         */
+        private void maybeLoadMore(int position, ListView listView) {
+            if (mFrozen || position < getCount() - 1 || mFiles.getCount() <= mLimit) {
+                return;
+            }
+            mLimit += PAGE_SIZE;
+            listView.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mFrozen) return;
+                    updateData();
+                    notifyDataSetChanged();
+                }
+            });
+        }
+
         @Override
         public int getCount() {
             return (mData == null) ? 0 : mData.size();
@@ -239,14 +421,14 @@ public class MiscFilesHandler extends ListActivity {
             return mData.get(position).mId;
         }
 
-        public void removeAll(List<Object> objs) {
+        public void removeAll(List<FileInfo> infos) {
             if (mData == null) {
                 return;
             }
-            for (Object o : objs) {
-                mData.remove(o);
-                mDataSize -= ((StorageMeasurement.FileInfo) o).mSize;
-            }
+            mData = new ArrayList<FileInfo>(mData);
+            mData.removeAll(infos);
+            mFiles.removeAll(infos);
+            mDataSize = mFiles.getTotalSize();
         }
 
         public long getDataSize() {
@@ -268,6 +450,7 @@ public class MiscFilesHandler extends ListActivity {
             view.setFileSize(Formatter.formatFileSize(mContext, item.mSize));
             final ListView listView = (ListView) parent;
             final int listPosition = position;
+            maybeLoadMore(position, listView);
             view.getCheckBox().setOnCheckedChangeListener(new OnCheckedChangeListener() {
                 
                 @Override
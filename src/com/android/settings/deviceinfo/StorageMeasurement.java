@@ -41,19 +41,24 @@ import android.util.Log;
 import android.util.SparseLongArray;
 
 import com.android.internal.app.IMediaContainerService;
+import com.android.settings.BackgroundThreadFactory;
 import com.google.android.collect.Maps;
 import com.google.android.collect.Sets;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import javax.annotation.concurrent.GuardedBy;
 
+import libcore.io.ErrnoException;
+import libcore.io.Libcore;
+
 /**
  * Utility for measuring the disk usage of internal storage or a physical
  * {@link StorageVolume}. Connects with a remote {@link IMediaContainerService}
@@ -78,6 +83,19 @@ public class StorageMeasurement {
             Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
             Environment.DIRECTORY_DOWNLOADS, Environment.DIRECTORY_ANDROID);
 
+    /** Most directories measured at once, shared by all volumes. */
+    private static final int MEASURE_WIDTH = 3;
+
+    /**
+     * Directories this many levels below a measured directory are sized by
+     * the container service and cached on their own; the levels above are
+     * listed and summed here.
+     */
+    private static final int SPLIT_DEPTH = 2;
+
+    private static final ExecutorService sMeasureExecutor = BackgroundThreadFactory.newPool(
+            "StorageMeasurement", MEASURE_WIDTH);
+
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
@@ -142,6 +160,26 @@ public class StorageMeasurement {
          * internal storage. Key is {@link UserHandle}.
          */
         public SparseLongArray usersSize = new SparseLongArray();
+
+        /**
+         * Whether every category has been measured. Partial details are
+         * delivered as categories finish, and only count what is known so
+         * far.
+         */
+        public boolean complete;
+
+        MeasurementDetails copy() {
+            final MeasurementDetails copy = new MeasurementDetails();
+            copy.totalSize = totalSize;
+            copy.availSize = availSize;
+            copy.appsSize = appsSize;
+            copy.cacheSize = cacheSize;
+            copy.mediaSize.putAll(mediaSize);
+            copy.miscSize = miscSize;
+            copy.usersSize = usersSize.clone();
+            copy.complete = complete;
+            return copy;
+        }
     }
 
     public interface MeasurementReceiver {
@@ -159,15 +197,22 @@ public class StorageMeasurement {
 
     private final MeasurementHandler mHandler;
 
+    private final Context mContext;
+
+    private final DirectorySizeIndex mIndex;
+
     private long mTotalSize;
     private long mAvailSize;
 
-    List<FileInfo> mFileInfoForMisc;
+    /** Misc files found by the last measurement, filled while it runs. */
+    volatile MiscFileList mMiscFiles;
 
     private StorageMeasurement(Context context, StorageVolume volume) {
         mVolume = volume;
         mIsInternal = volume == null;
         mIsPrimary = volume != null ? volume.isPrimary() : false;
+        mContext = context;
+        mIndex = DirectorySizeIndex.getInstance(context);
 
         // Start the thread that will measure the disk usage.
         final HandlerThread handlerThread = new HandlerThread("MemoryMeasurement");
@@ -197,6 +242,41 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Forget the cached sizes of every directory on this volume, so the next
+     * measurement walks them again. Use when files may have changed in place,
+     * such as after clearing caches.
+     */
+    public void invalidateDirectorySizes() {
+        if (mIsInternal) {
+            final UserManager userManager = (UserManager) mContext.getSystemService(
+                    Context.USER_SERVICE);
+            for (UserInfo user : userManager.getUsers()) {
+                final UserEnvironment userEnv = new UserEnvironment(user.id);
+                mIndex.remove(userEnv.getExternalStorageDirectory().getPath());
+            }
+        } else {
+            mIndex.remove(mVolume.getPath());
+        }
+    }
+
+    /**
+     * Return when the total size of the given directory was last measured,
+     * or 0 if it never was. Until it is measured again, that total stands
+     * in for it in the details delivered while a measurement runs.
+     */
+    public long getLastMeasuredTime(File path) {
+        return mIndex.getMeasuredTime(path.getPath());
+    }
+
+    /**
+     * Return the key of the misc total of the given directory, which lies
+     * below the directory so it is forgotten along with it.
+     */
+    private static String getMiscKey(File path) {
+        return path.getPath() + "/";
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -286,6 +366,10 @@ public class StorageMeasurement {
         public static final int MSG_DISCONNECT = 3;
         public static final int MSG_COMPLETED = 4;
         public static final int MSG_INVALIDATE = 5;
+        public static final int MSG_PART_COMPLETED = 6;
+
+        /** Set as arg1 of {@link #MSG_PART_COMPLETED} by parts run on the pool. */
+        private static final int PART_POOLED = 1;
 
         private Object mLock = new Object();
 
@@ -295,8 +379,61 @@ public class StorageMeasurement {
 
         private MeasurementDetails mCached;
 
+        /**
+         * Parts still running on the shared pool, which use the
+         * container service, so it must stay bound until they are done.
+         */
+        private int mRunningParts;
+        private boolean mDisconnectPending;
+
         private final WeakReference<Context> mContext;
 
+        /**
+         * Measurement in progress, completed once each of its parts has
+         * reported with {@link #MSG_PART_COMPLETED}.
+         */
+        private class PartialMeasurement {
+            final MeasurementDetails details;
+
+            /**
+             * Totals from the last measurement of categories that haven't
+             * been measured again yet. Guarded by {@link #details}.
+             */
+            final MeasurementDetails indexed = new MeasurementDetails();
+
+            int remaining;
+
+            PartialMeasurement(MeasurementDetails details) {
+                this.details = details;
+            }
+
+            boolean hasIndexed() {
+                synchronized (details) {
+                    return !indexed.mediaSize.isEmpty() || indexed.miscSize > 0
+                            || indexed.usersSize.size() > 0;
+                }
+            }
+
+            /**
+             * Return what has been measured so far, with the categories
+             * still being measured filled in from their last totals.
+             */
+            MeasurementDetails snapshot() {
+                synchronized (details) {
+                    final MeasurementDetails partial = details.copy();
+                    for (Map.Entry<String, Long> entry : indexed.mediaSize.entrySet()) {
+                        partial.mediaSize.put(entry.getKey(), entry.getValue());
+                    }
+                    partial.miscSize += indexed.miscSize;
+                    for (int i = 0; i < indexed.usersSize.size(); i++) {
+                        addValue(partial.usersSize, indexed.usersSize.keyAt(i),
+                                indexed.usersSize.valueAt(i));
+                    }
+                    return partial;
+                }
+            }
+        }
+
         private final ServiceConnection mDefContainerConn = new ServiceConnection() {
             @Override
             public void onServiceConnected(ComponentName name, IBinder service) {
@@ -336,6 +473,7 @@ public class StorageMeasurement {
                     synchronized (mLock) {
                         if (mBound) {
                             removeMessages(MSG_DISCONNECT);
+                            mDisconnectPending = false;
                             sendMessage(obtainMessage(MSG_CONNECTED, mDefaultContainer));
                         } else {
                             Intent service = new Intent().setComponent(DEFAULT_CONTAINER_COMPONENT);
@@ -352,6 +490,12 @@ public class StorageMeasurement {
                     break;
                 }
                 case MSG_DISCONNECT: {
+                    if (mRunningParts > 0) {
+                        // unbind once the last part reports back
+                        mDisconnectPending = true;
+                        break;
+                    }
+                    mDisconnectPending = false;
                     synchronized (mLock) {
                         if (mBound) {
                             final Context context = (mContext != null) ? mContext.get() : null;
@@ -368,12 +512,26 @@ public class StorageMeasurement {
                 case MSG_COMPLETED: {
                     mCached = (MeasurementDetails) msg.obj;
                     sendExactUpdate(mCached);
+                    mIndex.writeIfDirty();
                     break;
                 }
                 case MSG_INVALIDATE: {
                     mCached = null;
                     break;
                 }
+                case MSG_PART_COMPLETED: {
+                    if (msg.arg1 == PART_POOLED && --mRunningParts == 0 && mDisconnectPending) {
+                        sendEmptyMessage(MSG_DISCONNECT);
+                    }
+                    final PartialMeasurement measurement = (PartialMeasurement) msg.obj;
+                    if (--measurement.remaining == 0) {
+                        measurement.details.complete = true;
+                        obtainMessage(MSG_COMPLETED, measurement.details).sendToTarget();
+                    } else {
+                        sendExactUpdate(measurement.snapshot());
+                    }
+                    break;
+                }
             }
         }
 
@@ -391,14 +549,15 @@ public class StorageMeasurement {
             sendInternalApproximateUpdate();
         }
 
-        private void measureExactStorage(IMediaContainerService imcs) {
+        private void measureExactStorage(final IMediaContainerService imcs) {
             final Context context = mContext != null ? mContext.get() : null;
             if (context == null) {
                 return;
             }
 
             final MeasurementDetails details = new MeasurementDetails();
-            final Message finished = obtainMessage(MSG_COMPLETED, details);
+            final PartialMeasurement measurement = new PartialMeasurement(details);
+            final MeasurementDetails indexed = measurement.indexed;
 
             details.totalSize = mTotalSize;
             details.availSize = mAvailSize;
@@ -410,15 +569,30 @@ public class StorageMeasurement {
             final int currentUser = ActivityManager.getCurrentUser();
             final UserEnvironment currentEnv = new UserEnvironment(currentUser);
 
+            // Directory sizes are independent of each other, so each one is
+            // measured on the shared pool and reported back as it finishes.
+            final ArrayList<Runnable> parts = new ArrayList<Runnable>();
+
             // Measure media types for emulated storage, or for primary physical
             // external volume
             final boolean measureMedia = (mIsInternal && Environment.isExternalStorageEmulated())
                     || mIsPrimary;
             if (measureMedia) {
-                for (String type : sMeasureMediaTypes) {
+                for (final String type : sMeasureMediaTypes) {
                     final File path = currentEnv.getExternalStoragePublicDirectory(type);
-                    final long size = getDirectorySize(imcs, path);
-                    details.mediaSize.put(type, size);
+                    final long lastSize = mIndex.getTotal(path.getPath());
+                    if (lastSize >= 0) indexed.mediaSize.put(type, lastSize);
+                    parts.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            final long size = getDirectorySize(imcs, path);
+                            mIndex.putTotal(path.getPath(), size);
+                            synchronized (details) {
+                                details.mediaSize.put(type, size);
+                                indexed.mediaSize.remove(type);
+                            }
+                        }
+                    });
                 }
             }
 
@@ -426,44 +600,127 @@ public class StorageMeasurement {
             if (measureMedia) {
                 final File path = mIsInternal ? currentEnv.getExternalStorageDirectory()
                         : mVolume.getPathFile();
-                details.miscSize = measureMisc(imcs, path);
+                final long lastSize = mIndex.getTotal(getMiscKey(path));
+                if (lastSize >= 0) indexed.miscSize = lastSize;
+                parts.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long size = measureMisc(imcs, path);
+                        mIndex.putTotal(getMiscKey(path), size);
+                        synchronized (details) {
+                            details.miscSize = size;
+                            indexed.miscSize = 0;
+                        }
+                    }
+                });
             }
 
             // Measure total emulated storage of all users; internal apps data
             // will be spliced in later
             for (UserInfo user : users) {
-                final UserEnvironment userEnv = new UserEnvironment(user.id);
-                final long size = getDirectorySize(imcs, userEnv.getExternalStorageDirectory());
-                addValue(details.usersSize, user.id, size);
+                final int userId = user.id;
+                final File path = new UserEnvironment(userId).getExternalStorageDirectory();
+                final long lastSize = mIndex.getTotal(path.getPath());
+                if (lastSize >= 0) indexed.usersSize.put(userId, lastSize);
+                parts.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long size = getDirectorySize(imcs, path);
+                        mIndex.putTotal(path.getPath(), size);
+                        synchronized (details) {
+                            addValue(details.usersSize, userId, size);
+                            indexed.usersSize.delete(userId);
+                        }
+                    }
+                });
             }
 
             // Measure all apps for all users
             final PackageManager pm = context.getPackageManager();
-            if (mIsInternal || mIsPrimary) {
-                final List<ApplicationInfo> apps = pm.getInstalledApplications(
-                        PackageManager.GET_UNINSTALLED_PACKAGES
-                        | PackageManager.GET_DISABLED_COMPONENTS);
+            final boolean measureApps = mIsInternal || mIsPrimary;
+            final List<ApplicationInfo> apps = measureApps ? pm.getInstalledApplications(
+                    PackageManager.GET_UNINSTALLED_PACKAGES
+                    | PackageManager.GET_DISABLED_COMPONENTS) : null;
+            final int count = measureApps ? users.size() * apps.size() : 0;
+
+            measurement.remaining = parts.size() + (count > 0 ? 1 : 0);
+            if (measurement.remaining == 0) {
+                details.complete = true;
+                obtainMessage(MSG_COMPLETED, details).sendToTarget();
+                return;
+            }
 
-                final int count = users.size() * apps.size();
-                final StatsObserver observer = new StatsObserver(
-                        mIsInternal, details, currentUser, finished, count);
+            // show the last totals right away instead of waiting for the
+            // slowest directories to be walked again
+            if (measurement.hasIndexed()) {
+                sendExactUpdate(measurement.snapshot());
+            }
 
+            mRunningParts += parts.size();
+            for (final Runnable part : parts) {
+                sMeasureExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        part.run();
+                        obtainMessage(MSG_PART_COMPLETED, PART_POOLED, 0, measurement)
+                                .sendToTarget();
+                    }
+                });
+            }
+
+            if (count > 0) {
+                final StatsObserver observer = new StatsObserver(mIsInternal, details,
+                        currentUser, obtainMessage(MSG_PART_COMPLETED, measurement), count);
                 for (UserInfo user : users) {
                     for (ApplicationInfo app : apps) {
                         pm.getPackageSizeInfo(app.packageName, user.id, observer);
                     }
                 }
-
-            } else {
-                finished.sendToTarget();
             }
         }
     }
 
-    private static long getDirectorySize(IMediaContainerService imcs, File path) {
+    private long getDirectorySize(IMediaContainerService imcs, File path) {
+        return getDirectorySize(imcs, path, 0);
+    }
+
+    /**
+     * Size the given directory from the sizes of its subtrees at
+     * {@link #SPLIT_DEPTH}, each cached under its own signature, so a change
+     * deep in one subtree is noticed and only that subtree is walked again.
+     * Files above that depth are counted directly, by the blocks they
+     * occupy like the container service does, rather than by their length.
+     */
+    private long getDirectorySize(IMediaContainerService imcs, File path, int depth) {
+        if (depth < SPLIT_DEPTH) {
+            final File[] children = path.listFiles();
+            if (children != null) {
+                long size = 0;
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        size += getDirectorySize(imcs, child, depth + 1);
+                    } else {
+                        size += getAllocatedSize(child);
+                    }
+                }
+                return size;
+            }
+            // not listable from this process; leave the whole tree to the
+            // container service
+        }
+
+        // reuse the last size while the directory looks unchanged
+        final long signature = DirectorySizeIndex.getSignature(path);
+        final long cachedSize = mIndex.getSize(path.getPath(), signature);
+        if (cachedSize >= 0) {
+            if (LOGV) Log.v(TAG, "getDirectorySize(" + path + ") cached " + cachedSize);
+            return cachedSize;
+        }
+
         try {
             final long size = imcs.calculateDirectorySize(path.toString());
             Log.d(TAG, "getDirectorySize(" + path + ") returned " + size);
+            mIndex.putSize(path.getPath(), signature, size);
             return size;
         } catch (Exception e) {
             Log.w(TAG, "Could not read memory from default container service for " + path, e);
@@ -471,8 +728,17 @@ public class StorageMeasurement {
         }
     }
 
+    private static long getAllocatedSize(File file) {
+        try {
+            return Libcore.os.lstat(file.getPath()).st_blocks * 512;
+        } catch (ErrnoException e) {
+            return file.length();
+        }
+    }
+
     private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
+        final MiscFileList miscFiles = new MiscFileList();
+        mMiscFiles = miscFiles;
 
         final Parcel p = Parcel.obtain();
         try {
@@ -481,12 +747,17 @@ public class StorageMeasurement {
             p.setDataPosition(0);
         } catch (Exception e) {
             Log.w(TAG, "Could not list directory from default container service for " + dir, e);
+            p.recycle();
+            miscFiles.finish();
             return 0;
         }
 
-        // Get sizes of all top level nodes except the ones already computed
+        // Get sizes of all top level nodes except the ones already computed.
+        // Files already carry their size, so they are published right away,
+        // and directories follow as each one is sized.
         long counter = 0;
         long miscSize = 0;
+        final ArrayList<String> dirs = new ArrayList<String>();
 
         int count = p.readInt();
         for (int i = 0; i < count; i++) {
@@ -501,19 +772,22 @@ public class StorageMeasurement {
             }
 
             if (isFile) {
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
+                miscFiles.add(new FileInfo(path, fileSize, counter++));
                 miscSize += fileSize;
             } else if (isDirectory) {
-                final long dirSize = getDirectorySize(imcs, new File(path));
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
+                dirs.add(path);
             } else {
                 // Non directory, non file: not listed
             }
         }
+        p.recycle();
 
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
+        for (String path : dirs) {
+            final long dirSize = getDirectorySize(imcs, new File(path));
+            miscFiles.add(new FileInfo(path, dirSize, counter++));
+            miscSize += dirSize;
+        }
+        miscFiles.finish();
 
         return miscSize;
     }
@@ -447,37 +447,39 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory
 
         mUsageBarPreference.clear();
 
-        updatePreference(mItemApps, details.appsSize);
+        updatePreference(details, mItemApps, details.appsSize);
 
         final long dcimSize = totalValues(details.mediaSize, Environment.DIRECTORY_DCIM,
                 Environment.DIRECTORY_MOVIES, Environment.DIRECTORY_PICTURES);
-        updatePreference(mItemDcim, dcimSize);
+        updatePreference(details, mItemDcim, dcimSize);
 
         final long musicSize = totalValues(details.mediaSize, Environment.DIRECTORY_MUSIC,
                 Environment.DIRECTORY_ALARMS, Environment.DIRECTORY_NOTIFICATIONS,
                 Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS);
-        updatePreference(mItemMusic, musicSize);
+        updatePreference(details, mItemMusic, musicSize);
 
         final long downloadsSize = totalValues(details.mediaSize, Environment.DIRECTORY_DOWNLOADS);
-        updatePreference(mItemDownloads, downloadsSize);
+        updatePreference(details, mItemDownloads, downloadsSize);
 
-        updatePreference(mItemCache, details.cacheSize);
-        updatePreference(mItemMisc, details.miscSize);
+        updatePreference(details, mItemCache, details.cacheSize);
+        updatePreference(details, mItemMisc, details.miscSize);
 
         for (StorageItemPreference userPref : mItemUsers) {
             final long userSize = details.usersSize.get(userPref.userHandle);
-            updatePreference(userPref, userSize);
+            updatePreference(details, userPref, userSize);
         }
 
         mUsageBarPreference.commit();
     }
 
-    private void updatePreference(StorageItemPreference pref, long size) {
+    private void updatePreference(MeasurementDetails details, StorageItemPreference pref,
+            long size) {
         if (size > 0) {
             pref.setSummary(formatSize(size));
             final int order = pref.getOrder();
             mUsageBarPreference.addEntry(order, size / (float) mTotalSize, pref.color);
-        } else {
+        } else if (details.complete) {
+            // partial details may still be waiting on this category
             removePreference(pref);
         }
     }
@@ -507,6 +509,7 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory
     }
 
     public void onCacheCleared() {
+        mMeasure.invalidateDirectorySizes();
         measure();
     }
 
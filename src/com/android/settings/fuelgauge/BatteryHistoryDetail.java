@@ -28,18 +28,25 @@ import com.android.settings.R;
 
 public class BatteryHistoryDetail extends Fragment {
     public static final String EXTRA_STATS = "stats";
+    public static final String EXTRA_HISTORY = "history";
 
-    private BatteryStatsImpl mStats;
+    private BatteryHistoryModel mHistory;
 
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
+        mHistory = getArguments().getParcelable(EXTRA_HISTORY);
+        if (mHistory != null) {
+            return;
+        }
         byte[] data = getArguments().getByteArray(EXTRA_STATS);
         Parcel parcel = Parcel.obtain();
         parcel.unmarshall(data, 0, data.length);
         parcel.setDataPosition(0);
-        mStats = com.android.internal.os.BatteryStatsImpl.CREATOR
+        BatteryStatsImpl stats = com.android.internal.os.BatteryStatsImpl.CREATOR
                 .createFromParcel(parcel);
+        parcel.recycle();
+        mHistory = BatteryHistoryModel.get(stats);
     }
     
     @Override
@@ -47,7 +54,7 @@ public class BatteryHistoryDetail extends Fragment {
         View view = inflater.inflate(R.layout.preference_batteryhistory, null);
         BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
                 R.id.battery_history_chart);
-        chart.setStats(mStats);
+        chart.setHistory(mHistory);
         return view;
     }
 }
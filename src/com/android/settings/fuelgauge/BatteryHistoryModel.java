@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Battery history decoded once from a {@link BatteryStats} snapshot into
+ * primitive arrays, so that {@link BatteryHistoryChart} can build its paths
+ * at any size without walking the stats history again.  Parcelable, so the
+ * summary can hand the same model to {@link BatteryHistoryDetail}.
+ */
+public class BatteryHistoryModel implements Parcelable {
+    /** Marks a record where the history was interrupted, e.g. by a reboot. */
+    static final byte CMD_BREAK = 0;
+    static final byte CMD_UPDATE = 1;
+
+    private static WeakReference<BatteryStats> sLastStats;
+    private static WeakReference<BatteryHistoryModel> sLastModel;
+
+    /** Number of decoded records. */
+    final int mCount;
+    final byte[] mCmds;
+    final long[] mTimes;
+    final byte[] mLevels;
+    final int[] mStates;
+
+    final long mStatsPeriod;
+    final long mHistStart;
+    final long mHistEnd;
+    /** All states seen in the history, or-ed together. */
+    final int mAggrStates;
+
+    /**
+     * Return the model for the given stats, decoding it only if it is not
+     * the snapshot the last model was built from.
+     */
+    static BatteryHistoryModel get(BatteryStats stats) {
+        synchronized (BatteryHistoryModel.class) {
+            final BatteryHistoryModel last = sLastModel != null ? sLastModel.get() : null;
+            if (last != null && sLastStats.get() == stats) {
+                return last;
+            }
+            final BatteryHistoryModel model = new BatteryHistoryModel(stats);
+            sLastStats = new WeakReference<BatteryStats>(stats);
+            sLastModel = new WeakReference<BatteryHistoryModel>(model);
+            return model;
+        }
+    }
+
+    private BatteryHistoryModel(BatteryStats stats) {
+        mStatsPeriod = stats.computeBatteryRealtime(SystemClock.elapsedRealtime() * 1000,
+                BatteryStats.STATS_SINCE_CHARGED);
+
+        int capacity = 256;
+        byte[] cmds = new byte[capacity];
+        long[] times = new long[capacity];
+        byte[] levels = new byte[capacity];
+        int[] states = new int[capacity];
+
+        int count = 0;
+        int lastUpdate = 0;
+        long histStart = 0;
+        long histEnd = 0;
+        int aggrStates = 0;
+        boolean first = true;
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                final byte cmd;
+                if (rec.cmd == HistoryItem.CMD_UPDATE) {
+                    cmd = CMD_UPDATE;
+                } else if (rec.cmd != HistoryItem.CMD_OVERFLOW) {
+                    cmd = CMD_BREAK;
+                } else {
+                    continue;
+                }
+
+                if (count == capacity) {
+                    capacity *= 2;
+                    cmds = grow(cmds, capacity);
+                    times = grow(times, capacity);
+                    levels = grow(levels, capacity);
+                    states = grow(states, capacity);
+                }
+                cmds[count] = cmd;
+                times[count] = rec.time;
+                levels[count] = rec.batteryLevel;
+                states[count] = rec.states;
+                count++;
+
+                if (cmd == CMD_UPDATE) {
+                    if (first) {
+                        first = false;
+                        histStart = rec.time;
+                    }
+                    histEnd = rec.time;
+                    aggrStates |= rec.states;
+                    lastUpdate = count;
+                }
+            }
+            stats.finishIteratingHistoryLocked();
+        }
+
+        // Records after the last update never reach the chart.
+        mCount = lastUpdate;
+        mCmds = cmds;
+        mTimes = times;
+        mLevels = levels;
+        mStates = states;
+        mHistStart = histStart;
+        mHistEnd = histEnd <= histStart ? histStart + 1 : histEnd;
+        mAggrStates = aggrStates;
+    }
+
+    private BatteryHistoryModel(Parcel src) {
+        mCount = src.readInt();
+        mCmds = new byte[mCount];
+        src.readByteArray(mCmds);
+        mTimes = new long[mCount];
+        src.readLongArray(mTimes);
+        mLevels = new byte[mCount];
+        src.readByteArray(mLevels);
+        mStates = new int[mCount];
+        src.readIntArray(mStates);
+        mStatsPeriod = src.readLong();
+        mHistStart = src.readLong();
+        mHistEnd = src.readLong();
+        mAggrStates = src.readInt();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mCount);
+        dest.writeByteArray(mCmds, 0, mCount);
+        dest.writeLongArray(trim(mTimes, mCount));
+        dest.writeByteArray(mLevels, 0, mCount);
+        dest.writeIntArray(trim(mStates, mCount));
+        dest.writeLong(mStatsPeriod);
+        dest.writeLong(mHistStart);
+        dest.writeLong(mHistEnd);
+        dest.writeInt(mAggrStates);
+    }
+
+    public static final Creator<BatteryHistoryModel> CREATOR = new Creator<BatteryHistoryModel>() {
+        @Override
+        public BatteryHistoryModel createFromParcel(Parcel source) {
+            return new BatteryHistoryModel(source);
+        }
+
+        @Override
+        public BatteryHistoryModel[] newArray(int size) {
+            return new BatteryHistoryModel[size];
+        }
+    };
+
+    private static byte[] grow(byte[] array, int capacity) {
+        final byte[] result = new byte[capacity];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    private static long[] grow(long[] array, int capacity) {
+        final long[] result = new long[capacity];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        final int[] result = new int[capacity];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    private static long[] trim(long[] array, int count) {
+        if (array.length == count) return array;
+        final long[] result = new long[count];
+        System.arraycopy(array, 0, result, 0, count);
+        return result;
+    }
+
+    private static int[] trim(int[] array, int count) {
+        if (array.length == count) return array;
+        final int[] result = new int[count];
+        System.arraycopy(array, 0, result, 0, count);
+        return result;
+    }
+}
@@ -34,23 +34,29 @@ import com.android.settings.R;
 public class BatteryHistoryPreference extends Preference {
 
     private BatteryStats mStats;
+    private BatteryHistoryModel mHistory;
 
     public BatteryHistoryPreference(Context context, BatteryStats stats) {
         super(context);
         setLayoutResource(R.layout.preference_batteryhistory);
         mStats = stats;
+        mHistory = BatteryHistoryModel.get(stats);
     }
 
     BatteryStats getStats() {
         return mStats;
     }
 
+    BatteryHistoryModel getHistory() {
+        return mHistory;
+    }
+
     @Override
     protected void onBindView(View view) {
         super.onBindView(view);
 
         BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
                 R.id.battery_history_chart);
-        chart.setStats(mStats);
+        chart.setHistory(mHistory);
     }
 }
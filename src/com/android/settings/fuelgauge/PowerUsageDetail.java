@@ -176,7 +176,13 @@ public class PowerUsageDetail extends Fragment implements Button.OnClickListener
         mNoCoverage = args.getDouble(EXTRA_NO_COVERAGE, 0);
         String iconPackage = args.getString(EXTRA_ICON_PACKAGE);
         int iconId = args.getInt(EXTRA_ICON_ID, 0);
-        if (!TextUtils.isEmpty(iconPackage)) {
+        final UidNameIconResolver.UidDetail uidDetail = mDrainType == DrainType.APP
+                ? UidNameIconResolver.getInstance(getActivity()).getCached(mUid) : null;
+        if (uidDetail != null && uidDetail.icon != null
+                && TextUtils.equals(iconPackage, uidDetail.packageName)) {
+            // Already decoded for the summary.
+            mAppIcon = uidDetail.icon;
+        } else if (!TextUtils.isEmpty(iconPackage)) {
             try {
                 final PackageManager pm = getActivity().getPackageManager();
                 ApplicationInfo ai = pm.getPackageInfo(iconPackage, 0).applicationInfo;
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.os.BatteryStats;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BatteryStatsImpl;
+import com.android.internal.os.PowerProfile;
+
+import java.util.Arrays;
+
+/**
+ * Loads battery stats and computes power usage from them in the background.
+ * When the marshalled stats hash the same as for the previous load of the
+ * same stats type, the previous {@link PowerUsageCalculator.Result} is
+ * delivered again without unmarshalling anything.
+ */
+public class PowerUsageLoader extends AsyncTaskLoader<PowerUsageCalculator.Result> {
+    private static final String TAG = "PowerUsageLoader";
+
+    private final IBatteryStats mBatteryInfo;
+    private final PowerProfile mPowerProfile;
+
+    private volatile int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
+
+    // Written by the loading thread, hash first.
+    private volatile int mResultHash;
+    private volatile PowerUsageCalculator.Result mResult;
+
+    public PowerUsageLoader(Context context, IBatteryStats batteryInfo,
+            PowerProfile powerProfile) {
+        super(context);
+        mBatteryInfo = batteryInfo;
+        mPowerProfile = powerProfile;
+    }
+
+    /**
+     * Switch between {@link BatteryStats#STATS_SINCE_CHARGED} and
+     * {@link BatteryStats#STATS_SINCE_UNPLUGGED}, loading again if needed.
+     */
+    public void setStatsType(int statsType) {
+        if (mStatsType != statsType) {
+            mStatsType = statsType;
+            onContentChanged();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        if (takeContentChanged() || mResult == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    public PowerUsageCalculator.Result loadInBackground() {
+        final int statsType = mStatsType;
+        final byte[] data;
+        try {
+            data = mBatteryInfo.getStatistics();
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            // keep showing the last result, unless it is for the other type
+            final PowerUsageCalculator.Result last = mResult;
+            return last != null && last.statsType == statsType ? last : null;
+        }
+
+        final int hash = Arrays.hashCode(data);
+        final PowerUsageCalculator.Result last = mResult;
+        if (last != null && last.statsType == statsType && hash == mResultHash) {
+            return last;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        parcel.unmarshall(data, 0, data.length);
+        parcel.setDataPosition(0);
+        BatteryStatsImpl stats = com.android.internal.os.BatteryStatsImpl.CREATOR
+                .createFromParcel(parcel);
+        parcel.recycle();
+        stats.distributeWorkLocked(BatteryStats.STATS_SINCE_CHARGED);
+
+        final PowerUsageCalculator.Result result = new PowerUsageCalculator(getContext(),
+                mPowerProfile, stats, statsType).compute();
+        mResultHash = hash;
+        mResult = result;
+        return result;
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+        mResult = null;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import com.android.settings.BackgroundThreadFactory;
+
+import java.util.ArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the label and icon shown for an application uid in the battery
+ * screens.  Requests run on a small pool of background threads, most
+ * important first, and results are delivered on the main thread.
+ * <p>
+ * Resolved details are kept in memory, bounded by the size of their icons,
+ * and dropped when one of the uid's packages changes.
+ */
+class UidNameIconResolver {
+    /** Assumed size of icons that aren't backed by a {@link Bitmap}. */
+    private static final int DEFAULT_ICON_BYTES = 16 * 1024;
+
+    private static final int POOL_SIZE = 2;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    static class UidDetail {
+        final String name;
+        final String packageName;
+        final Drawable icon;
+
+        UidDetail(String name, String packageName, Drawable icon) {
+            this.name = name;
+            this.packageName = packageName;
+            this.icon = icon;
+        }
+    }
+
+    interface Listener {
+        /** Called on the main thread once the given uid was resolved. */
+        void onUidResolved(int uid, UidDetail detail);
+    }
+
+    private static UidNameIconResolver sInstance;
+
+    static synchronized UidNameIconResolver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UidNameIconResolver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Integer, UidDetail> mCache;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mSequence = new AtomicInteger();
+
+    // Requests queued or running, by uid.  Guarded by itself.
+    private final SparseArray<Request> mPending = new SparseArray<Request>();
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid != -1) {
+                mCache.remove(uid);
+            }
+        }
+    };
+
+    private UidNameIconResolver(Context context) {
+        mContext = context;
+
+        // keep icons to a small slice of our memory class
+        final ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final int maxBytes = am.getMemoryClass() * 1024 * 1024 / 32;
+        mCache = new LruCache<Integer, UidDetail>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer key, UidDetail detail) {
+                if (detail.icon instanceof BitmapDrawable) {
+                    final Bitmap bitmap = ((BitmapDrawable) detail.icon).getBitmap();
+                    if (bitmap != null) {
+                        return bitmap.getByteCount();
+                    }
+                }
+                return DEFAULT_ICON_BYTES;
+            }
+        };
+
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new BackgroundThreadFactory("BatteryUsage Icon Loader"));
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mPackageReceiver, filter);
+    }
+
+    /**
+     * Return what is already known about the given uid, or null.
+     */
+    UidDetail getCached(int uid) {
+        return mCache.get(uid);
+    }
+
+    /**
+     * Resolve the given uid in the background and tell the listener.
+     * Requests with a lower priority run first, so callers pass the
+     * position of the row on screen.  A uid that is already queued is only
+     * moved ahead, never back.
+     */
+    void request(int uid, int priority, Listener listener) {
+        synchronized (mPending) {
+            Request request = mPending.get(uid);
+            if (request != null) {
+                if (!request.listeners.contains(listener)) {
+                    request.listeners.add(listener);
+                }
+                if (priority < request.priority && mExecutor.remove(request)) {
+                    request = new Request(uid, priority, request.listeners);
+                    mPending.put(uid, request);
+                    mExecutor.execute(request);
+                }
+                return;
+            }
+            final ArrayList<Listener> listeners = new ArrayList<Listener>();
+            listeners.add(listener);
+            request = new Request(uid, priority, listeners);
+            mPending.put(uid, request);
+            mExecutor.execute(request);
+        }
+    }
+
+    /**
+     * Stop delivering results to the given listener, dropping requests
+     * nobody else is waiting for.
+     */
+    void cancel(Listener listener) {
+        synchronized (mPending) {
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                final Request request = mPending.valueAt(i);
+                request.listeners.remove(listener);
+                if (request.listeners.isEmpty() && mExecutor.remove(request)) {
+                    mPending.removeAt(i);
+                }
+            }
+        }
+    }
+
+    private class Request implements Runnable, Comparable<Request> {
+        final int uid;
+        final int priority;
+        final int sequence = mSequence.getAndIncrement();
+        final ArrayList<Listener> listeners;
+
+        Request(int uid, int priority, ArrayList<Listener> listeners) {
+            this.uid = uid;
+            this.priority = priority;
+            this.listeners = listeners;
+        }
+
+        @Override
+        public int compareTo(Request another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            UidDetail detail = mCache.get(uid);
+            if (detail == null) {
+                detail = resolve(uid);
+                if (detail != null) {
+                    mCache.put(uid, detail);
+                }
+            }
+
+            final ArrayList<Listener> listeners;
+            synchronized (mPending) {
+                if (mPending.get(uid) == this) {
+                    mPending.remove(uid);
+                }
+                listeners = new ArrayList<Listener>(this.listeners);
+            }
+            if (detail == null || listeners.isEmpty()) return;
+
+            final UidDetail result = detail;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Listener listener : listeners) {
+                        listener.onUidResolved(uid, result);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Work out a label and icon for the given uid from its packages,
+     * preferring the shared user label when there are several.
+     */
+    private UidDetail resolve(int uid) {
+        final PackageManager pm = mContext.getPackageManager();
+        final String[] packages = pm.getPackagesForUid(uid);
+        if (packages == null) {
+            return new UidDetail(Integer.toString(uid), null, null);
+        }
+
+        String name = null;
+        String defaultPackageName = null;
+        Drawable icon = null;
+
+        String[] packageLabels = new String[packages.length];
+        System.arraycopy(packages, 0, packageLabels, 0, packages.length);
+
+        // Convert package names to user-facing labels where possible
+        for (int i = 0; i < packageLabels.length; i++) {
+            try {
+                ApplicationInfo ai = pm.getApplicationInfo(packageLabels[i], 0);
+                CharSequence label = ai.loadLabel(pm);
+                if (label != null) {
+                    packageLabels[i] = label.toString();
+                }
+                if (ai.icon != 0) {
+                    defaultPackageName = packages[i];
+                    icon = ai.loadIcon(pm);
+                    break;
+                }
+            } catch (NameNotFoundException e) {
+            }
+        }
+        if (icon == null) icon = pm.getDefaultActivityIcon();
+
+        if (packageLabels.length == 1) {
+            name = packageLabels[0];
+        } else {
+            // Look for an official name for this UID.
+            for (String pkgName : packages) {
+                try {
+                    final PackageInfo pi = pm.getPackageInfo(pkgName, 0);
+                    if (pi.sharedUserLabel != 0) {
+                        final CharSequence nm = pm.getText(pkgName,
+                                pi.sharedUserLabel, pi.applicationInfo);
+                        if (nm != null) {
+                            name = nm.toString();
+                            if (pi.applicationInfo.icon != 0) {
+                                defaultPackageName = pkgName;
+                                icon = pi.applicationInfo.loadIcon(pm);
+                            }
+                            break;
+                        }
+                    }
+                } catch (PackageManager.NameNotFoundException e) {
+                }
+            }
+        }
+        return new UidDetail(name, defaultPackageName, icon);
+    }
+}
@@ -29,10 +29,21 @@ import android.net.INetworkStatsSession;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
+import com.android.settings.BackgroundThreadFactory;
 import com.android.settings.DataUsageSummary.AppItem;
 
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
  * Loader for historical chart data for both network and UID details.
  */
@@ -41,8 +52,29 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
+    /** Most UID history requests kept in flight at once in batched mode. */
+    private static final int BATCH_WIDTH = 4;
+
+    /** Shared by all loaders, so concurrent loads still stay within the width. */
+    private static final ExecutorService sBatchExecutor = BackgroundThreadFactory.newPool(
+            "ChartDataLoader", BATCH_WIDTH);
+
+    /** Minimum time between two progress reports in batched mode. */
+    private static final long PROGRESS_INTERVAL = 250;
+
+    /**
+     * Receives the partially merged detail history while the UIDs of a
+     * batched {@link AppItem} are loading.  Called on the main thread.
+     */
+    public interface ProgressListener {
+        public void onChartDataProgress(ChartData partial, int loaded, int total);
+    }
+
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
+    private final Handler mHandler = new Handler();
+
+    private ProgressListener mProgressListener;
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
         return buildArgs(template, app, FIELD_RX_BYTES | FIELD_TX_BYTES);
@@ -62,6 +94,10 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         mArgs = args;
     }
 
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
@@ -88,7 +124,15 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         final ChartData data = new ChartData();
         data.network = mSession.getHistoryForNetwork(template, fields);
 
-        if (app != null) {
+        if (app != null && app.uids.size() > 1) {
+            loadDetailBatched(template, app, data);
+            if (data.detail == null) {
+                // interrupted before any UID arrived
+                data.detailDefault = new NetworkStatsHistory(HOUR_IN_MILLIS);
+                data.detailForeground = new NetworkStatsHistory(HOUR_IN_MILLIS);
+                data.detail = new NetworkStatsHistory(HOUR_IN_MILLIS);
+            }
+        } else if (app != null) {
             // load stats for current uid and template
             final int size = app.uids.size();
             for (int i = 0; i < size; i++) {
@@ -113,6 +157,99 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         return data;
     }
 
+    /**
+     * Load the default and foreground history of every UID in the given
+     * {@link AppItem}, keeping several requests in flight, and merge each
+     * result into the detail histories as it arrives.
+     */
+    private void loadDetailBatched(final NetworkTemplate template, AppItem app,
+            ChartData data) throws RemoteException {
+        final int size = app.uids.size();
+        final CompletionService<NetworkStatsHistory[]> service =
+                new ExecutorCompletionService<NetworkStatsHistory[]>(sBatchExecutor);
+        final ArrayList<Future<NetworkStatsHistory[]>> futures =
+                new ArrayList<Future<NetworkStatsHistory[]>>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                final int uid = app.uids.keyAt(i);
+                futures.add(service.submit(new Callable<NetworkStatsHistory[]>() {
+                    @Override
+                    public NetworkStatsHistory[] call() throws RemoteException {
+                        return new NetworkStatsHistory[] {
+                                mSession.getHistoryForUid(template, uid, SET_DEFAULT, TAG_NONE,
+                                        FIELD_RX_BYTES | FIELD_TX_BYTES),
+                                mSession.getHistoryForUid(template, uid, SET_FOREGROUND,
+                                        TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES) };
+                    }
+                }));
+            }
+
+            long lastProgress = SystemClock.elapsedRealtime();
+            for (int i = 0; i < size; i++) {
+                if (isLoadInBackgroundCanceled()) return;
+
+                final NetworkStatsHistory[] result = service.take().get();
+                final NetworkStatsHistory defaultHistory = result[0];
+                final NetworkStatsHistory foregroundHistory = result[1];
+
+                if (data.detail == null) {
+                    // size the merged histories after the first UID, since
+                    // every UID shares the same buckets
+                    final long bucketDuration = foregroundHistory.getBucketDuration();
+                    final int initialSize = Math.max(
+                            defaultHistory.size(), foregroundHistory.size());
+                    data.detailDefault = new NetworkStatsHistory(bucketDuration, initialSize);
+                    data.detailForeground = new NetworkStatsHistory(bucketDuration, initialSize);
+                    data.detail = new NetworkStatsHistory(bucketDuration, initialSize);
+                }
+                data.detailDefault.recordEntireHistory(defaultHistory);
+                data.detailForeground.recordEntireHistory(foregroundHistory);
+                data.detail.recordEntireHistory(defaultHistory);
+                data.detail.recordEntireHistory(foregroundHistory);
+
+                final long now = SystemClock.elapsedRealtime();
+                if (i < size - 1 && now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    publishProgress(data, i + 1, size);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RuntimeException("problem reading network stats", e.getCause());
+        } finally {
+            // drop whatever is still queued when canceled or failed
+            for (Future<NetworkStatsHistory[]> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Post a copy of the detail merged so far to the progress listener.
+     */
+    private void publishProgress(ChartData data, final int loaded, final int total) {
+        if (mProgressListener == null) return;
+
+        final ChartData partial = new ChartData();
+        partial.network = data.network;
+        partial.detail = new NetworkStatsHistory(
+                data.detail.getBucketDuration(), data.detail.size());
+        partial.detail.recordEntireHistory(data.detail);
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted() && !isAbandoned() && mProgressListener != null) {
+                    mProgressListener.onChartDataProgress(partial, loaded, total);
+                }
+            }
+        });
+    }
+
     @Override
     protected void onStopLoading() {
         super.onStopLoading();
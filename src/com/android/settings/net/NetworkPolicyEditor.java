@@ -32,7 +32,9 @@ import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
 import android.net.NetworkTemplate;
 import android.net.wifi.WifiInfo;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.text.TextUtils;
 import android.text.format.Time;
 
@@ -47,21 +49,87 @@ import java.util.HashSet;
  * Utility class to modify list of {@link NetworkPolicy}. Specifically knows
  * about which policies can coexist. This editor offers thread safety when
  * talking with {@link NetworkPolicyManager}.
+ * <p>
+ * Changes are written behind, on a single thread shared by all editors, so
+ * writes reach {@link NetworkPolicyManager} in the order they were made.
+ * Bursts of changes, such as while dragging a chart sweep, are coalesced
+ * into one write of the latest policies; call {@link #flush()} to write
+ * them without waiting, such as when leaving the screen.  Until a write has
+ * gone through, {@link #read()} of any editor in the process returns the
+ * policies waiting for it instead of the stale ones held by the service.
  */
 public class NetworkPolicyEditor {
     // TODO: be more robust when missing policies from service
 
     public static final boolean ENABLE_SPLIT_POLICIES = false;
 
+    /** Delay before changes are written, letting further changes coalesce. */
+    private static final long WRITE_DELAY = 500;
+
+    private static Handler sWriteHandler;
+
+    private static synchronized Handler getWriteHandler() {
+        if (sWriteHandler == null) {
+            final HandlerThread thread = new HandlerThread(
+                    "NetworkPolicyWriter", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sWriteHandler = new Handler(thread.getLooper());
+        }
+        return sWriteHandler;
+    }
+
+    private static final Object sPendingLock = new Object();
+
+    /**
+     * Latest policies of any editor that have not reached the service yet,
+     * and the manager to write them with. Guarded by {@link #sPendingLock}.
+     */
+    private static NetworkPolicy[] sPendingPolicies;
+    private static NetworkPolicyManager sPendingManager;
+
+    private static final Runnable sWrite = new Runnable() {
+        @Override
+        public void run() {
+            final NetworkPolicy[] policies;
+            final NetworkPolicyManager policyManager;
+            synchronized (sPendingLock) {
+                policies = sPendingPolicies;
+                policyManager = sPendingManager;
+            }
+            if (policies == null) return;
+
+            policyManager.setNetworkPolicies(policies);
+
+            // keep answering reads from the snapshot until it's written
+            synchronized (sPendingLock) {
+                if (sPendingPolicies == policies) {
+                    sPendingPolicies = null;
+                    sPendingManager = null;
+                }
+            }
+        }
+    };
+
     private NetworkPolicyManager mPolicyManager;
     private ArrayList<NetworkPolicy> mPolicies = Lists.newArrayList();
 
+    private final Handler mWriteHandler = getWriteHandler();
+
     public NetworkPolicyEditor(NetworkPolicyManager policyManager) {
         mPolicyManager = checkNotNull(policyManager);
     }
 
     public void read() {
-        final NetworkPolicy[] policies = mPolicyManager.getNetworkPolicies();
+        NetworkPolicy[] policies = null;
+        synchronized (sPendingLock) {
+            if (sPendingPolicies != null) {
+                // a write is still on its way; don't pick up what it replaces
+                policies = copyOf(sPendingPolicies);
+            }
+        }
+        if (policies == null) {
+            policies = mPolicyManager.getNetworkPolicies();
+        }
 
         boolean modified = false;
         mPolicies.clear();
@@ -89,15 +157,37 @@ public class NetworkPolicyEditor {
     }
 
     public void writeAsync() {
-        // TODO: consider making more robust by passing through service
-        final NetworkPolicy[] policies = mPolicies.toArray(new NetworkPolicy[mPolicies.size()]);
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                write(policies);
-                return null;
-            }
-        }.execute();
+        // snapshot, since the policies keep being edited while we wait
+        final NetworkPolicy[] policies = copyOf(
+                mPolicies.toArray(new NetworkPolicy[mPolicies.size()]));
+        synchronized (sPendingLock) {
+            sPendingPolicies = policies;
+            sPendingManager = mPolicyManager;
+        }
+        mWriteHandler.removeCallbacks(sWrite);
+        mWriteHandler.postDelayed(sWrite, WRITE_DELAY);
+    }
+
+    private static NetworkPolicy[] copyOf(NetworkPolicy[] policies) {
+        final NetworkPolicy[] copy = new NetworkPolicy[policies.length];
+        for (int i = 0; i < policies.length; i++) {
+            final NetworkPolicy policy = policies[i];
+            copy[i] = new NetworkPolicy(policy.template, policy.cycleDay,
+                    policy.cycleTimezone, policy.warningBytes, policy.limitBytes,
+                    policy.lastWarningSnooze, policy.lastLimitSnooze, policy.metered,
+                    policy.inferred);
+        }
+        return copy;
+    }
+
+    /**
+     * Write any pending changes now instead of waiting for further changes.
+     * Doesn't block; the write still happens on the writer thread, after
+     * any writes already underway.
+     */
+    public void flush() {
+        mWriteHandler.removeCallbacks(sWrite);
+        mWriteHandler.post(sWrite);
     }
 
     public void write(NetworkPolicy[] policies) {
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.AsyncTask;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.util.Objects;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of per-UID summaries returned by
+ * {@link INetworkStatsSession#getSummaryForAllUid}, keyed by template and
+ * range, so that switching back to a cycle that was already shown, or one
+ * that was prefetched, does not go back to the stats service.  Summaries
+ * older than the staleness window are loaded again.
+ */
+public class SummaryForAllUidCache {
+    private static final String TAG = "SummaryForAllUidCache";
+    private static final boolean LOGD = false;
+
+    public static final long DEFAULT_MAX_AGE = 5 * MINUTE_IN_MILLIS;
+
+    /** Cycles beyond this many are dropped, least recently used first. */
+    private static final int MAX_ENTRIES = 8;
+
+    private static class Key {
+        final NetworkTemplate template;
+        final long start;
+        final long end;
+
+        Key(NetworkTemplate template, long start, long end) {
+            this.template = template;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(template, start, end);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                final Key another = (Key) o;
+                return start == another.start && end == another.end
+                        && Objects.equal(template, another.template);
+            }
+            return false;
+        }
+    }
+
+    private static class Entry {
+        final NetworkStats stats;
+        final long loadedRealtime;
+        final long loadedTime;
+
+        Entry(NetworkStats stats) {
+            this.stats = stats;
+            this.loadedRealtime = SystemClock.elapsedRealtime();
+            this.loadedTime = System.currentTimeMillis();
+        }
+    }
+
+    private final INetworkStatsSession mSession;
+
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(
+            MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /** Ranges currently being loaded, by a loader or a prefetch. */
+    private final HashSet<Key> mPending = new HashSet<Key>();
+
+    private long mMaxAge = DEFAULT_MAX_AGE;
+    private boolean mClosed;
+
+    public SummaryForAllUidCache(INetworkStatsSession session) {
+        mSession = session;
+    }
+
+    /**
+     * Set how long a loaded summary is served before it is loaded again.
+     */
+    public synchronized void setMaxAge(long maxAge) {
+        mMaxAge = maxAge;
+    }
+
+    /**
+     * Return the summary for the given range, loading it from the stats
+     * service unless a fresh copy is cached.  Blocks while the same range is
+     * being loaded by another thread, so call off the main thread.
+     */
+    public NetworkStats getSummaryForAllUid(NetworkTemplate template, long start, long end)
+            throws RemoteException {
+        final Key key = new Key(template, start, end);
+        synchronized (this) {
+            while (mPending.contains(key)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            final Entry entry = getFreshLocked(key);
+            if (entry != null) {
+                if (LOGD) Log.d(TAG, "serving cached summary for " + start + "-" + end);
+                return entry.stats;
+            }
+            mPending.add(key);
+        }
+        return load(key);
+    }
+
+    /**
+     * Start loading any of the given ranges that are not already cached, one
+     * after another on a background thread.  Each range is given as a
+     * {@code start, end} pair.
+     */
+    public void prefetch(NetworkTemplate template, long... ranges) {
+        final HashSet<Key> keys = new HashSet<Key>();
+        synchronized (this) {
+            if (mClosed) return;
+            for (int i = 0; i + 1 < ranges.length; i += 2) {
+                final Key key = new Key(template, ranges[i], ranges[i + 1]);
+                if (getFreshLocked(key) == null && mPending.add(key)) {
+                    keys.add(key);
+                }
+            }
+        }
+        if (keys.isEmpty()) return;
+
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                for (Key key : keys) {
+                    try {
+                        load(key);
+                    } catch (RemoteException e) {
+                        // loader will try again when this cycle is shown
+                    }
+                }
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Drop summaries whose range had not ended when they were loaded, since
+     * they no longer include the most recent traffic.
+     */
+    public synchronized void invalidateOpen() {
+        final Iterator<Map.Entry<Key, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Key, Entry> entry = it.next();
+            if (entry.getKey().end > entry.getValue().loadedTime) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Stop prefetching; the session is about to be closed.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        mEntries.clear();
+    }
+
+    /**
+     * Load the given range, which the caller must have marked pending.
+     */
+    private NetworkStats load(Key key) throws RemoteException {
+        NetworkStats stats = null;
+        try {
+            synchronized (this) {
+                if (mClosed) return null;
+            }
+            if (LOGD) Log.d(TAG, "loading summary for " + key.start + "-" + key.end);
+            stats = mSession.getSummaryForAllUid(key.template, key.start, key.end, false);
+            return stats;
+        } finally {
+            synchronized (this) {
+                mPending.remove(key);
+                if (stats != null && !mClosed) {
+                    mEntries.put(key, new Entry(stats));
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private Entry getFreshLocked(Key key) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) return null;
+        if (SystemClock.elapsedRealtime() - entry.loadedRealtime > mMaxAge) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+}
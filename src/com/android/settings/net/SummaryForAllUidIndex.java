@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.SET_ALL;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
+import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.util.Objects;
+
+/**
+ * Per-UID usage history of a template, so that the totals of any sub-range
+ * of a cycle can be answered without going back to the stats service, such
+ * as while the inspection sweeps of the chart are dragged.  Buckets only
+ * partly covered by a sub-range are prorated by
+ * {@link NetworkStatsHistory#getValues}.
+ */
+public class SummaryForAllUidIndex {
+    private static final String TAG = "SummaryForAllUidIndex";
+    private static final boolean LOGD = false;
+
+    private final NetworkTemplate mTemplate;
+    private final long mStart;
+    private final long mEnd;
+
+    /** UIDs with usage in the cycle, and the history of each. */
+    private final int[] mUids;
+    private final NetworkStatsHistory[] mHistories;
+
+    /**
+     * Load the history of every UID in the given summary of a cycle, with
+     * one request per UID. Only those UIDs can have usage within the cycle,
+     * so the index answers any sub-range of it. Returns {@code null} when
+     * the calling thread was interrupted before it was done.
+     */
+    public static SummaryForAllUidIndex build(INetworkStatsSession session,
+            NetworkTemplate template, long start, long end, NetworkStats cycleSummary)
+            throws RemoteException {
+        final SparseBooleanArray known = new SparseBooleanArray();
+        NetworkStats.Entry entry = null;
+        final int size = cycleSummary != null ? cycleSummary.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = cycleSummary.getValues(i, entry);
+            if (entry.rxBytes != 0 || entry.txBytes != 0) {
+                known.put(entry.uid, true);
+            }
+        }
+        if (LOGD) Log.d(TAG, "building " + known.size() + " histories for " + start + "-" + end);
+
+        final int[] uids = new int[known.size()];
+        final NetworkStatsHistory[] histories = new NetworkStatsHistory[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            if (Thread.interrupted()) return null;
+
+            uids[i] = known.keyAt(i);
+            histories[i] = session.getHistoryForUid(template, uids[i], SET_ALL, TAG_NONE,
+                    FIELD_RX_BYTES | FIELD_TX_BYTES);
+        }
+
+        return new SummaryForAllUidIndex(template, start, end, uids, histories);
+    }
+
+    private SummaryForAllUidIndex(NetworkTemplate template, long start, long end, int[] uids,
+            NetworkStatsHistory[] histories) {
+        mTemplate = template;
+        mStart = start;
+        mEnd = end;
+        mUids = uids;
+        mHistories = histories;
+    }
+
+    /**
+     * Return whether the given range of the given template can be answered
+     * by this index.
+     */
+    public boolean covers(NetworkTemplate template, long start, long end) {
+        return start >= mStart && end <= mEnd && Objects.equal(template, mTemplate);
+    }
+
+    /**
+     * Return the per-UID usage of the given range, shaped like the result of
+     * {@link INetworkStatsSession#getSummaryForAllUid} with one entry for
+     * each UID.
+     */
+    public NetworkStats getSummary(long start, long end) {
+        final long now = System.currentTimeMillis();
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), mUids.length);
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < mUids.length; i++) {
+            if (mHistories[i] == null) continue;
+            entry = mHistories[i].getValues(start, end, now, entry);
+            if (entry.rxBytes == 0 && entry.txBytes == 0) continue;
+            stats.addValues(IFACE_ALL, mUids[i], SET_ALL, TAG_NONE, entry.rxBytes, 0L,
+                    entry.txBytes, 0L, 0L);
+        }
+        return stats;
+    }
+}
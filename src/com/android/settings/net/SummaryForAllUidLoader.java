@@ -30,6 +30,7 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     private static final String KEY_END = "end";
 
     private final INetworkStatsSession mSession;
+    private final SummaryForAllUidCache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
@@ -41,8 +42,18 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     public SummaryForAllUidLoader(Context context, INetworkStatsSession session, Bundle args) {
+        this(context, session, null, args);
+    }
+
+    /**
+     * Create a loader that serves summaries from the given cache when
+     * possible, which may be {@code null}.
+     */
+    public SummaryForAllUidLoader(Context context, INetworkStatsSession session,
+            SummaryForAllUidCache cache, Bundle args) {
         super(context);
         mSession = session;
+        mCache = cache;
         mArgs = args;
     }
 
@@ -59,6 +70,9 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         final long end = mArgs.getLong(KEY_END);
 
         try {
+            if (mCache != null) {
+                return mCache.getSummaryForAllUid(template, start, end);
+            }
             return mSession.getSummaryForAllUid(template, start, end, false);
         } catch (RemoteException e) {
             return null;
@@ -16,31 +16,79 @@
 
 package com.android.settings.net;
 
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.ConnectivityManager;
 import android.net.TrafficStats;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.TextUtils;
-import android.util.SparseArray;
+import android.util.LruCache;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
 import com.android.settings.users.UserUtils;
 
+import java.io.File;
+import java.util.ArrayList;
+
 /**
  * Return details about a specific UID, handling special cases like
  * {@link TrafficStats#UID_TETHERING} and {@link UserInfo}.
+ * <p>
+ * Details are cached in memory, bounded by the size of their icons, and
+ * details of application UIDs are also kept in a {@link UidDetailStore} on
+ * disk. Both are invalidated by package broadcasts.
+ * <p>
+ * Details missing from memory are loaded by one background pass at a time,
+ * which {@link #prefetch} and {@link #request} feed.
  */
 public class UidDetailProvider {
+    /** Assumed size of icons that aren't backed by a {@link Bitmap}. */
+    private static final int DEFAULT_ICON_BYTES = 16 * 1024;
+
+    /** Shortest time between two progress callbacks of the background load. */
+    private static final long PREFETCH_PROGRESS_INTERVAL = 100;
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final LruCache<Integer, UidDetail> mUidDetailCache;
+    private final UidDetailStore mStore;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Object mPendingLock = new Object();
+    /** UIDs waiting for the background load, in order. Guarded by mPendingLock. */
+    private final ArrayList<Integer> mPending = new ArrayList<Integer>();
+    /** Whether the background load is running. Guarded by mPendingLock. */
+    private boolean mLoading;
+    /** Callback of the latest caller. Guarded by mPendingLock. */
+    private Runnable mOnLoaded;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid != -1) {
+                invalidate(uid);
+            }
+        }
+    };
 
     public static int buildKeyForUser(int userHandle) {
         return -(2000 + userHandle);
@@ -48,12 +96,63 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+
+        // keep icons to a small slice of our memory class
+        final ActivityManager am = (ActivityManager) mContext.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        final int maxBytes = am.getMemoryClass() * 1024 * 1024 / 32;
+        mUidDetailCache = new LruCache<Integer, UidDetail>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer key, UidDetail detail) {
+                if (detail.icon instanceof BitmapDrawable) {
+                    final Bitmap bitmap = ((BitmapDrawable) detail.icon).getBitmap();
+                    if (bitmap != null) {
+                        return bitmap.getByteCount();
+                    }
+                }
+                return DEFAULT_ICON_BYTES;
+            }
+        };
+        mStore = new UidDetailStore(mContext);
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, filter);
     }
 
     public void clearCache() {
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.clear();
+        mUidDetailCache.evictAll();
+    }
+
+    /**
+     * Stop listening for package changes and persist anything resolved so
+     * far. The provider must not be used afterwards.
+     */
+    public void close() {
+        mContext.unregisterReceiver(mPackageReceiver);
+        synchronized (mPendingLock) {
+            mPending.clear();
+            mOnLoaded = null;
+        }
+        mMainHandler.removeCallbacks(mNotifyLoaded);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mStore.writeIfDirty();
+            }
+        });
+    }
+
+    /**
+     * Forget anything known about the given UID, for example because one
+     * of its packages changed.
+     */
+    public void invalidate(int uid) {
+        mUidDetailCache.remove(uid);
+        if (UserHandle.isApp(uid)) {
+            mStore.remove(uid);
         }
     }
 
@@ -61,11 +160,7 @@ public class UidDetailProvider {
      * Resolve best descriptive label for the given UID.
      */
     public UidDetail getUidDetail(int uid, boolean blocking) {
-        UidDetail detail;
-
-        synchronized (mUidDetailCache) {
-            detail = mUidDetailCache.get(uid);
-        }
+        UidDetail detail = mUidDetailCache.get(uid);
 
         if (detail != null) {
             return detail;
@@ -73,15 +168,148 @@ public class UidDetailProvider {
             return null;
         }
 
-        detail = buildUidDetail(uid);
+        detail = loadUidDetail(uid);
+        mUidDetailCache.put(uid, detail);
+        return detail;
+    }
 
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
+    /**
+     * Resolve details for all given UIDs on a background thread, in order,
+     * replacing whatever was waiting to be resolved. UIDs already in memory
+     * are skipped; if that's all of them, nothing is started. The given
+     * callback runs on the main thread as details become available, at most
+     * every {@link #PREFETCH_PROGRESS_INTERVAL}, and once more when all are
+     * done, when the disk store is also written.
+     */
+    public void prefetch(int[] uids, Runnable onLoaded) {
+        synchronized (mPendingLock) {
+            mPending.clear();
+            for (int uid : uids) {
+                if (mUidDetailCache.get(uid) == null) {
+                    mPending.add(uid);
+                }
+            }
+            mOnLoaded = onLoaded;
+            startLoadingLocked();
         }
+    }
 
+    /**
+     * Resolve details for the given UID ahead of anything else waiting, such
+     * as for a row bound after its details were evicted from memory. The
+     * callback runs like for {@link #prefetch}.
+     */
+    public void request(int uid, Runnable onLoaded) {
+        synchronized (mPendingLock) {
+            mPending.remove(Integer.valueOf(uid));
+            mPending.add(0, uid);
+            mOnLoaded = onLoaded;
+            startLoadingLocked();
+        }
+    }
+
+    private void startLoadingLocked() {
+        if (mLoading || mPending.isEmpty()) return;
+        mLoading = true;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(mLoadPending);
+    }
+
+    private final Runnable mLoadPending = new Runnable() {
+        @Override
+        public void run() {
+            long lastProgress = SystemClock.uptimeMillis();
+            while (true) {
+                final int uid;
+                synchronized (mPendingLock) {
+                    if (mPending.isEmpty()) {
+                        mLoading = false;
+                        break;
+                    }
+                    uid = mPending.remove(0);
+                }
+                getUidDetail(uid, true);
+
+                final long now = SystemClock.uptimeMillis();
+                if (now - lastProgress >= PREFETCH_PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    postLoaded();
+                }
+            }
+            mStore.writeIfDirty();
+            postLoaded();
+        }
+    };
+
+    private void postLoaded() {
+        mMainHandler.removeCallbacks(mNotifyLoaded);
+        mMainHandler.post(mNotifyLoaded);
+    }
+
+    private final Runnable mNotifyLoaded = new Runnable() {
+        @Override
+        public void run() {
+            final Runnable onLoaded;
+            synchronized (mPendingLock) {
+                onLoaded = mOnLoaded;
+            }
+            if (onLoaded != null) {
+                onLoaded.run();
+            }
+        }
+    };
+
+    /**
+     * Load {@link UidDetail} from the disk store when it is still current,
+     * otherwise build it from {@link PackageManager} and remember it.
+     */
+    private UidDetail loadUidDetail(int uid) {
+        if (!UserHandle.isApp(uid)) {
+            // special cases are cheap to build and not worth storing
+            return buildUidDetail(uid);
+        }
+
+        final String stamp = buildStamp(uid);
+        final UidDetailStore.Record record = mStore.get(uid, stamp);
+        if (record != null) {
+            final UidDetail detail = new UidDetail();
+            detail.label = record.label;
+            detail.detailLabels = record.detailLabels;
+            final Bitmap icon = record.icon != null
+                    ? BitmapFactory.decodeByteArray(record.icon, 0, record.icon.length) : null;
+            detail.icon = icon != null
+                    ? new BitmapDrawable(mContext.getResources(), icon)
+                    : mContext.getPackageManager().getDefaultActivityIcon();
+            return detail;
+        }
+
+        final UidDetail detail = buildUidDetail(uid);
+        mStore.put(uid, stamp, detail);
         return detail;
     }
 
+    /**
+     * Describe the packages behind the given UID, so a stored record can
+     * be recognized as stale once any of them is installed, updated or
+     * removed.
+     */
+    private String buildStamp(int uid) {
+        final PackageManager pm = mContext.getPackageManager();
+        final String[] packageNames = pm.getPackagesForUid(uid);
+        final StringBuilder stamp = new StringBuilder();
+        if (packageNames != null) {
+            for (String packageName : packageNames) {
+                stamp.append(packageName).append(':');
+                try {
+                    final ApplicationInfo info = pm.getApplicationInfo(packageName, 0);
+                    stamp.append(new File(info.sourceDir).lastModified());
+                } catch (NameNotFoundException e) {
+                }
+                stamp.append(';');
+            }
+        }
+        return stamp.toString();
+    }
+
     /**
      * Build {@link UidDetail} object, blocking until all {@link Drawable}
      * lookup is finished.
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.Context;
+import android.util.SparseArray;
+
+import com.android.settings.SnapshotFile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Disk-backed store of the labels and scaled icons resolved by
+ * {@link UidDetailProvider}, so they survive process death.  Each record
+ * carries a stamp describing the packages it was built from, and is only
+ * returned while the caller's current stamp still matches.  Icons are kept
+ * as PNG bytes; the provider decodes them into its bounded cache as needed.
+ */
+class UidDetailStore {
+    private static final String FILE_NAME = "uid_details";
+    private static final int VERSION = 1;
+
+    static class Record {
+        String stamp;
+        String label;
+        String[] detailLabels;
+        byte[] icon;
+    }
+
+    private final SnapshotFile mFile;
+    private final String mConfigKey;
+
+    private final SparseArray<Record> mRecords = new SparseArray<Record>();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    UidDetailStore(Context context) {
+        mFile = new SnapshotFile(context, FILE_NAME, VERSION);
+        mConfigKey = SnapshotFile.getConfigKey(context.getResources());
+    }
+
+    /**
+     * Return the record for the given UID if it was built from packages
+     * matching the given stamp.
+     */
+    synchronized Record get(int uid, String stamp) {
+        ensureLoadedLocked();
+        final Record record = mRecords.get(uid);
+        if (record != null && !record.stamp.equals(stamp)) {
+            mRecords.remove(uid);
+            mDirty = true;
+            return null;
+        }
+        return record;
+    }
+
+    synchronized void put(int uid, String stamp, UidDetail detail) {
+        ensureLoadedLocked();
+        final Record record = new Record();
+        record.stamp = stamp;
+        record.label = detail.label != null ? detail.label.toString() : "";
+        if (detail.detailLabels != null) {
+            record.detailLabels = new String[detail.detailLabels.length];
+            for (int i = 0; i < detail.detailLabels.length; i++) {
+                record.detailLabels[i] = String.valueOf(detail.detailLabels[i]);
+            }
+        }
+        record.icon = mFile.compressIcon(detail.icon);
+        mRecords.put(uid, record);
+        mDirty = true;
+    }
+
+    synchronized void remove(int uid) {
+        ensureLoadedLocked();
+        if (mRecords.get(uid) != null) {
+            mRecords.remove(uid);
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Write the store to disk if anything changed since it was loaded or
+     * last written.  Performs I/O, so call off the main thread.
+     */
+    synchronized void writeIfDirty() {
+        if (!mDirty) return;
+
+        final boolean written = mFile.write(mConfigKey, new SnapshotFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(mRecords.size());
+                for (int i = 0; i < mRecords.size(); i++) {
+                    final Record record = mRecords.valueAt(i);
+                    out.writeInt(mRecords.keyAt(i));
+                    out.writeUTF(record.stamp);
+                    out.writeUTF(record.label);
+                    final int numDetail = record.detailLabels != null
+                            ? record.detailLabels.length : 0;
+                    out.writeInt(numDetail);
+                    for (int j = 0; j < numDetail; j++) {
+                        out.writeUTF(record.detailLabels[j]);
+                    }
+                    SnapshotFile.writeBytes(out, record.icon);
+                }
+            }
+        });
+        if (written) {
+            mDirty = false;
+        }
+    }
+
+    private void ensureLoadedLocked() {
+        if (mLoaded) return;
+        mLoaded = true;
+
+        final boolean loaded = mFile.read(mConfigKey, new SnapshotFile.Reader() {
+            @Override
+            public void read(DataInputStream in) throws IOException {
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    final int uid = in.readInt();
+                    final Record record = new Record();
+                    record.stamp = in.readUTF();
+                    record.label = in.readUTF();
+                    final int numDetail = in.readInt();
+                    if (numDetail > 0) {
+                        record.detailLabels = new String[numDetail];
+                        for (int j = 0; j < numDetail; j++) {
+                            record.detailLabels[j] = in.readUTF();
+                        }
+                    }
+                    record.icon = SnapshotFile.readBytes(in);
+                    mRecords.put(uid, record);
+                }
+            }
+        });
+        if (!loaded) {
+            // missing, corrupt or resolved for another locale or density;
+            // start over
+            mRecords.clear();
+            mDirty = true;
+        }
+    }
+}
@@ -69,6 +69,8 @@ public class ChartDataUsageView extends ChartView {
     private long mVertMax;
 
     public interface DataUsageChartListener {
+        /** Called repeatedly while an inspection sweep is being dragged. */
+        public void onInspectRangeChanging();
         public void onInspectRangeChanged();
         public void onWarningChanged();
         public void onLimitChanged();
@@ -300,9 +302,11 @@ public class ChartDataUsageView extends ChartView {
         public void onSweep(ChartSweepView sweep, boolean sweepDone) {
             updatePrimaryRange();
 
-            // update detail list only when done sweeping
-            if (sweepDone && mListener != null) {
+            if (mListener == null) return;
+            if (sweepDone) {
                 mListener.onInspectRangeChanged();
+            } else {
+                mListener.onInspectRangeChanging();
             }
         }
 
@@ -72,6 +72,22 @@ public class ChartNetworkSeriesView extends View {
     private boolean mPathValid = false;
     private boolean mEstimateVisible = false;
 
+    // Decimated series and what it was built for; see generatePoints().
+    private long[] mPointTimes = new long[64];
+    private long[] mPointTotals = new long[64];
+    private int mPointCount;
+    private int mPendingColumn;
+    private long mPointsLastTime;
+    private long mPointsTotal;
+    private boolean mPointsValid = false;
+    private NetworkStatsHistory mPointsStats;
+    private long mPointsStart;
+    private long mPointsEnd;
+    private long mPointsEndTime;
+    private int mPointsWidth;
+    private float mPointsStartPoint;
+    private float mPointsEndPoint;
+
     private long mMax;
     private long mMaxEstimate;
 
@@ -136,6 +152,7 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mPointsValid = false;
         invalidatePath();
         invalidate();
     }
@@ -162,34 +179,35 @@ public class ChartNetworkSeriesView extends View {
     }
 
     /**
-     * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * Reduce the bound {@link NetworkStatsHistory} to the points that
+     * outline it on screen, keeping only the last point that lands in each
+     * pixel column.  The series is cumulative, so that point is also the
+     * highest one in its column.  Points are kept as (time, total bytes) so
+     * they survive changes to the vertical axis, and are only rebuilt when
+     * the stats, bounds or horizontal scale change.
      */
-    private void generatePath() {
-        if (LOGD) Log.d(TAG, "generatePath()");
-
-        mMax = 0;
-        mPathStroke.reset();
-        mPathFill.reset();
-        mPathEstimate.reset();
-        mPathValid = true;
-
-        // bail when not enough stats to render
-        if (mStats == null || mStats.size() < 2) {
+    private void generatePoints(int width) {
+        final float startPoint = mHoriz.convertToPoint(mStart);
+        final float endPoint = mHoriz.convertToPoint(mEnd);
+        if (mPointsValid && mPointsStats == mStats && mPointsStart == mStart
+                && mPointsEnd == mEnd && mPointsEndTime == mEndTime && mPointsWidth == width
+                && mPointsStartPoint == startPoint && mPointsEndPoint == endPoint) {
             return;
         }
+        if (LOGD) Log.d(TAG, "generatePoints()");
 
-        final int width = getWidth();
-        final int height = getHeight();
-
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
+        mPointsValid = true;
+        mPointsStats = mStats;
+        mPointsStart = mStart;
+        mPointsEnd = mEnd;
+        mPointsEndTime = mEndTime;
+        mPointsWidth = width;
+        mPointsStartPoint = startPoint;
+        mPointsEndPoint = endPoint;
+        mPointCount = 0;
+        mPendingColumn = Integer.MIN_VALUE;
 
-        // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
+        long lastTime = mHoriz.convertToValue(0);
 
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
@@ -206,37 +224,91 @@ public class ChartNetworkSeriesView extends View {
             final long startTime = entry.bucketStart;
             final long endTime = startTime + entry.bucketDuration;
 
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
             // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
+            if (mHoriz.convertToPoint(endTime) < 0) continue;
 
             if (lastTime != startTime) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                addPoint(startTime, totalData);
             }
 
+            // increment by current bucket total
+            totalData += entry.rxBytes + entry.txBytes;
+
             // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            addPoint(endTime, totalData);
 
-            lastX = endX;
-            lastY = endY;
             lastTime = endTime;
         }
 
         // when data falls short, extend to requested end time
         if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
+            addPoint(mEndTime, totalData);
+        }
+        mPendingColumn = Integer.MIN_VALUE;
+
+        mPointsLastTime = lastTime;
+        mPointsTotal = totalData;
+    }
+
+    /**
+     * Append a point, replacing the previous one when both fall in the same
+     * pixel column.
+     */
+    private void addPoint(long time, long total) {
+        final int column = (int) Math.floor(mHoriz.convertToPoint(time));
+        if (column != mPendingColumn || mPointCount == 0) {
+            if (mPointCount == mPointTimes.length) {
+                final int size = mPointCount * 2;
+                final long[] times = new long[size];
+                final long[] totals = new long[size];
+                System.arraycopy(mPointTimes, 0, times, 0, mPointCount);
+                System.arraycopy(mPointTotals, 0, totals, 0, mPointCount);
+                mPointTimes = times;
+                mPointTotals = totals;
+            }
+            mPointCount++;
+            mPendingColumn = column;
+        }
+        mPointTimes[mPointCount - 1] = time;
+        mPointTotals[mPointCount - 1] = total;
+    }
+
+    /**
+     * Erase any existing {@link Path} and generate series outline based on
+     * currently bound {@link NetworkStatsHistory} data.
+     */
+    private void generatePath() {
+        if (LOGD) Log.d(TAG, "generatePath()");
+
+        mMax = 0;
+        mPathStroke.reset();
+        mPathFill.reset();
+        mPathEstimate.reset();
+        mPathValid = true;
+
+        // bail when not enough stats to render
+        if (mStats == null || mStats.size() < 2) {
+            return;
+        }
+
+        final int width = getWidth();
+        final int height = getHeight();
+
+        generatePoints(width);
+
+        float lastX = 0;
+        float lastY = height;
+        final long lastTime = mPointsLastTime;
+        long totalData = mPointsTotal;
+
+        // move into starting position
+        mPathStroke.moveTo(lastX, lastY);
+        mPathFill.moveTo(lastX, lastY);
 
+        for (int i = 0; i < mPointCount; i++) {
+            lastX = mHoriz.convertToPoint(mPointTimes[i]);
+            lastY = mVert.convertToPoint(mPointTotals[i]);
             mPathStroke.lineTo(lastX, lastY);
             mPathFill.lineTo(lastX, lastY);
         }
@@ -258,6 +330,7 @@ public class ChartNetworkSeriesView extends View {
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
 
+            NetworkStatsHistory.Entry entry = null;
             final long now = System.currentTimeMillis();
             final long bucketDuration = mStats.getBucketDuration();
 
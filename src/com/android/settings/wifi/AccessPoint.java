@@ -74,6 +74,10 @@ class AccessPoint extends Preference {
     private WifiInfo mInfo;
     private DetailedState mState;
 
+    // Set while reload() and updates are being applied, see finishReload().
+    private boolean mReloading;
+    private int mLevelBeforeReload;
+
     static int getSecurity(WifiConfiguration config) {
         if (config.allowedKeyManagement.get(KeyMgmt.WPA_PSK)) {
             return SECURITY_PSK;
@@ -85,7 +89,7 @@ class AccessPoint extends Preference {
         return (config.wepKeys[0] != null) ? SECURITY_WEP : SECURITY_NONE;
     }
 
-    private static int getSecurity(ScanResult result) {
+    static int getSecurity(ScanResult result) {
         if (result.capabilities.contains("WEP")) {
             return SECURITY_WEP;
         } else if (result.capabilities.contains("PSK")) {
@@ -96,6 +100,21 @@ class AccessPoint extends Preference {
         return SECURITY_NONE;
     }
 
+    /**
+     * Key identifying the network behind an access point across scans.
+     */
+    static String getKey(String ssid, int security, int networkId) {
+        return ssid + ',' + security + ',' + networkId;
+    }
+
+    static String getKey(ScanResult result) {
+        return getKey(result.SSID, getSecurity(result), WifiConfiguration.INVALID_NETWORK_ID);
+    }
+
+    String getKey() {
+        return getKey(ssid, security, networkId);
+    }
+
     public String getSecurityString(boolean concise) {
         Context context = getContext();
         switch(security) {
@@ -184,6 +203,56 @@ class AccessPoint extends Preference {
         }
     }
 
+    /**
+     * Start reusing this access point for the given configuration.  Its
+     * signal level is forgotten until {@link #update(ScanResult)} raises it
+     * again, and the preference is only refreshed by {@link #finishReload()}.
+     */
+    void reload(WifiConfiguration config) {
+        startReload();
+        loadConfig(config);
+    }
+
+    /**
+     * Like {@link #reload(WifiConfiguration)}, for a network that is only
+     * known from the given scan result.
+     */
+    void reload(ScanResult result) {
+        startReload();
+        loadResult(result);
+    }
+
+    private void startReload() {
+        if (!mReloading) {
+            mReloading = true;
+            mLevelBeforeReload = getLevel();
+        }
+    }
+
+    /**
+     * Refresh the preference once, and only redraw the signal if its level
+     * differs from before the reload.
+     *
+     * @return whether the signal level changed.
+     */
+    boolean finishReload() {
+        if (!mReloading) return false;
+        mReloading = false;
+        refresh();
+        if (getLevel() != mLevelBeforeReload) {
+            notifyChanged();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ask the list to sort its preferences again.
+     */
+    void requestReorder() {
+        notifyHierarchyChanged();
+    }
+
     private void loadConfig(WifiConfiguration config) {
         ssid = (config.SSID == null ? "" : removeDoubleQuotes(config.SSID));
         bssid = config.BSSID;
@@ -193,6 +262,10 @@ class AccessPoint extends Preference {
         isIBSS = config.isIBSS;
         frequency = config.frequency;
         mConfig = config;
+        // only known from scans, see update(ScanResult)
+        mScanResult = null;
+        wpsAvailable = false;
+        pskType = PskType.UNKNOWN;
     }
 
     private void loadResult(ScanResult result) {
@@ -202,8 +275,7 @@ class AccessPoint extends Preference {
         wpsAvailable = security != SECURITY_EAP && result.capabilities.contains("WPS");
         isIBSS = result.capabilities.contains("[IBSS]");
         frequency = result.frequency;
-        if (security == SECURITY_PSK)
-            pskType = getPskType(result);
+        pskType = (security == SECURITY_PSK) ? getPskType(result) : PskType.UNKNOWN;
         networkId = -1;
         mRssi = result.level;
         mScanResult = result;
@@ -249,7 +321,20 @@ class AccessPoint extends Preference {
             return difference;
         }
         // Sort by ssid.
-        return ssid.compareToIgnoreCase(other.ssid);
+        difference = ssid.compareToIgnoreCase(other.ssid);
+        if (difference != 0) {
+            return difference;
+        }
+        // Only the same network compares equal, so that removing an access
+        // point from the list can't take another one with it.
+        difference = ssid.compareTo(other.ssid);
+        if (difference != 0) {
+            return difference;
+        }
+        if (security != other.security) {
+            return security - other.security;
+        }
+        return networkId - other.networkId;
     }
 
     @Override
@@ -273,7 +358,7 @@ class AccessPoint extends Preference {
             if (WifiManager.compareSignalLevel(result.level, mRssi) > 0) {
                 int oldLevel = getLevel();
                 mRssi = result.level;
-                if (getLevel() != oldLevel) {
+                if (getLevel() != oldLevel && !mReloading) {
                     notifyChanged();
                 }
             }
@@ -341,6 +426,7 @@ class AccessPoint extends Preference {
 
     /** Updates the title and summary; may indirectly call notifyChanged()  */
     private void refresh() {
+        if (mReloading) return;
         setTitle(ssid);
 
         Context context = getContext();
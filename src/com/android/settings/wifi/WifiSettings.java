@@ -44,12 +44,14 @@ import android.net.wifi.WifiChannel;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserManager;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.provider.Settings;
 import android.telephony.TelephonyManager;
+import android.text.format.DateUtils;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -77,7 +79,6 @@ import com.android.settings.SettingsPreferenceFragment;
 import com.android.settings.wifi.p2p.WifiP2pSettings;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -112,6 +113,11 @@ public class WifiSettings extends SettingsPreferenceFragment
 
     // Combo scans can take 5-6s to complete - set to 10s.
     private static final int WIFI_RESCAN_INTERVAL_MS = 10 * 1000;
+    // Back off to this while scan results stay the same.
+    private static final int WIFI_RESCAN_MAX_INTERVAL_MS = 80 * 1000;
+    // The interval floor already allows this many scans per minute; the cap
+    // holds back the extra scans forced by the user or by resuming.
+    private static final int WIFI_MAX_SCANS_PER_MINUTE = 6;
 
     // Instance state keys
     private static final String SAVE_DIALOG_EDIT_MODE = "edit_mode";
@@ -138,6 +144,8 @@ public class WifiSettings extends SettingsPreferenceFragment
     private WifiEnabler mWifiEnabler;
     // An access point being editted is stored here.
     private AccessPoint mSelectedAccessPoint;
+    // Access points on screen, by AccessPoint.getKey().
+    private HashMap<String, AccessPoint> mAccessPoints = new HashMap<String, AccessPoint>();
 
     private DetailedState mLastState;
     private WifiInfo mLastInfo;
@@ -447,6 +455,10 @@ public class WifiSettings extends SettingsPreferenceFragment
         }
         getActivity().unregisterReceiver(mReceiver);
         mScanner.pause();
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Issued " + getScanCount() + " scans, results changed "
+                    + getResultsChangedCount() + " times");
+        }
     }
 
     @Override
@@ -707,31 +719,26 @@ public class WifiSettings extends SettingsPreferenceFragment
      * Shows the latest access points available with supplimental information like
      * the strength of network and the security for it.
      */
-    private void updateAccessPoints() {
+    private boolean updateAccessPoints() {
         // Safeguard from some delayed event handling
-        if (getActivity() == null) return;
+        if (getActivity() == null) return false;
 
         if (mUserManager.hasUserRestriction(UserManager.DISALLOW_CONFIG_WIFI)) {
             addMessagePreference(R.string.wifi_empty_list_user_restricted);
-            return;
+            return false;
         }
         final int wifiState = mWifiManager.getWifiState();
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints = constructAccessPoints();
-                getPreferenceScreen().removeAll();
-                if(accessPoints.size() == 0) {
+                final boolean changed = updateAccessPointList();
+                if (mAccessPoints.isEmpty()) {
                     addMessagePreference(R.string.wifi_empty_list_wifi_on);
                 }
-                for (AccessPoint accessPoint : accessPoints) {
-                    getPreferenceScreen().addPreference(accessPoint);
-                }
-                break;
+                return changed;
 
             case WifiManager.WIFI_STATE_ENABLING:
-                getPreferenceScreen().removeAll();
+                clearAccessPoints();
                 break;
 
             case WifiManager.WIFI_STATE_DISABLING:
@@ -742,6 +749,7 @@ public class WifiSettings extends SettingsPreferenceFragment
                 setOffMessage();
                 break;
         }
+        return false;
     }
 
     private void setOffMessage() {
@@ -761,17 +769,34 @@ public class WifiSettings extends SettingsPreferenceFragment
                 mEmptyView.append(charSeq);
             }
         }
-        getPreferenceScreen().removeAll();
+        clearAccessPoints();
     }
 
     private void addMessagePreference(int messageId) {
         if (mEmptyView != null) mEmptyView.setText(messageId);
+        clearAccessPoints();
+    }
+
+    private void clearAccessPoints() {
         getPreferenceScreen().removeAll();
+        mAccessPoints.clear();
     }
 
-    /** Returns sorted list of access points */
-    private List<AccessPoint> constructAccessPoints() {
-        ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>();
+    /**
+     * Brings the list in line with the configured networks and the latest
+     * scan results.  Access points still around are updated in place, keyed
+     * by {@link AccessPoint#getKey()}, so only networks that appeared or
+     * went away are added or removed, and the list is only sorted again when
+     * the order changed.
+     *
+     * @return whether any access point was added or removed, or changed its
+     *         signal level.
+     */
+    private boolean updateAccessPointList() {
+        final HashMap<String, AccessPoint> previous = mAccessPoints;
+        final HashMap<String, AccessPoint> current = new HashMap<String, AccessPoint>();
+        final ArrayList<AccessPoint> added = new ArrayList<AccessPoint>();
+        final ArrayList<AccessPoint> reloaded = new ArrayList<AccessPoint>();
         /** Lookup table to more quickly update AccessPoints by only considering objects with the
          * correct SSID.  Maps SSID -> List of AccessPoints with the given SSID.  */
         Multimap<String, AccessPoint> apMap = new Multimap<String, AccessPoint>();
@@ -779,9 +804,22 @@ public class WifiSettings extends SettingsPreferenceFragment
         final List<WifiConfiguration> configs = mWifiManager.getConfiguredNetworks();
         if (configs != null) {
             for (WifiConfiguration config : configs) {
-                AccessPoint accessPoint = new AccessPoint(getActivity(), config);
+                final String ssid = config.SSID == null ? ""
+                        : AccessPoint.removeDoubleQuotes(config.SSID);
+                final String key = AccessPoint.getKey(ssid, AccessPoint.getSecurity(config),
+                        config.networkId);
+                if (current.containsKey(key)) continue;
+
+                AccessPoint accessPoint = previous.remove(key);
+                if (accessPoint != null) {
+                    accessPoint.reload(config);
+                    reloaded.add(accessPoint);
+                } else {
+                    accessPoint = new AccessPoint(getActivity(), config);
+                    added.add(accessPoint);
+                }
                 accessPoint.update(mLastInfo, mLastState);
-                accessPoints.add(accessPoint);
+                current.put(key, accessPoint);
                 apMap.put(accessPoint.ssid, accessPoint);
             }
         }
@@ -805,19 +843,49 @@ public class WifiSettings extends SettingsPreferenceFragment
                         found = true;
                 }
                 if (!found) {
-                    AccessPoint accessPoint = new AccessPoint(getActivity(), result);
-                    accessPoints.add(accessPoint);
+                    final String key = AccessPoint.getKey(result);
+                    AccessPoint accessPoint = previous.remove(key);
+                    if (accessPoint != null) {
+                        accessPoint.reload(result);
+                        reloaded.add(accessPoint);
+                    } else {
+                        accessPoint = new AccessPoint(getActivity(), result);
+                        added.add(accessPoint);
+                    }
+                    current.put(key, accessPoint);
                     apMap.put(accessPoint.ssid, accessPoint);
                 }
             }
         }
 
-        // Pre-sort accessPoints to speed preference insertion
-        Collections.sort(accessPoints);
-        return accessPoints;
+        final PreferenceScreen screen = getPreferenceScreen();
+        for (AccessPoint accessPoint : previous.values()) {
+            screen.removePreference(accessPoint);
+        }
+        boolean changed = !previous.isEmpty() || !added.isEmpty();
+        for (AccessPoint accessPoint : reloaded) {
+            changed |= accessPoint.finishReload();
+        }
+        // Pre-sort new access points to speed preference insertion
+        Collections.sort(added);
+        for (AccessPoint accessPoint : added) {
+            screen.addPreference(accessPoint);
+        }
+        mAccessPoints = current;
+
+        if (previous.isEmpty() && added.isEmpty() && !reloaded.isEmpty()) {
+            // Nothing was added or removed, which would have sorted the list.
+            for (int i = 1; i < screen.getPreferenceCount(); i++) {
+                if (screen.getPreference(i - 1).compareTo(screen.getPreference(i)) > 0) {
+                    reloaded.get(0).requestReorder();
+                    break;
+                }
+            }
+        }
+        return changed;
     }
 
-    /** A restricted multimap for use in constructAccessPoints */
+    /** A restricted multimap for use in updateAccessPointList */
     private class Multimap<K,V> {
         private HashMap<K,List<V>> store = new HashMap<K,List<V>>();
         /** retrieve a non-null list of values with key K */
@@ -841,8 +909,9 @@ public class WifiSettings extends SettingsPreferenceFragment
         if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
             updateWifiState(intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE,
                     WifiManager.WIFI_STATE_UNKNOWN));
-        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action) ||
-                WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
+        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
+            mScanner.onScanResults(updateAccessPoints());
+        } else if (WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
                 WifiManager.LINK_CONFIGURATION_CHANGED_ACTION.equals(action)) {
                 updateAccessPoints();
         } else if (WifiManager.SUPPLICANT_STATE_CHANGED_ACTION.equals(action)) {
@@ -939,17 +1008,37 @@ public class WifiSettings extends SettingsPreferenceFragment
         mScanner.pause();
     }
 
+    /**
+     * Scans quickly while the list is opened or its results keep changing,
+     * and backs off exponentially once they are stable.  Only results of
+     * scans issued here adapt the interval, not those of scans requested by
+     * other apps.  Forced scans included, no more than
+     * {@link #WIFI_MAX_SCANS_PER_MINUTE} scans are issued in any minute.
+     */
     private class Scanner extends Handler {
         private int mRetry = 0;
+        private long mInterval = WIFI_RESCAN_INTERVAL_MS;
+        private long mLastScanTime;
+        // Whether a scan issued here has not delivered its results yet.
+        private boolean mAwaitingResults;
+        // When the most recent scans were issued, oldest first.
+        private final long[] mScanTimes = new long[WIFI_MAX_SCANS_PER_MINUTE];
+        private int mScanTimesStart;
+
+        // For measuring the cost of leaving the list open.
+        private int mScanCount;
+        private int mResultsChangedCount;
 
         void resume() {
             if (!hasMessages(0)) {
+                mInterval = WIFI_RESCAN_INTERVAL_MS;
                 sendEmptyMessage(0);
             }
         }
 
         void forceScan() {
             removeMessages(0);
+            mInterval = WIFI_RESCAN_INTERVAL_MS;
             sendEmptyMessage(0);
         }
 
@@ -958,10 +1047,52 @@ public class WifiSettings extends SettingsPreferenceFragment
             removeMessages(0);
         }
 
+        /**
+         * Adapt the interval to whether the results of our latest scan
+         * changed the list, rescheduling the pending scan accordingly.
+         */
+        void onScanResults(boolean changed) {
+            if (!mAwaitingResults) return;
+            mAwaitingResults = false;
+
+            if (changed) {
+                mResultsChangedCount++;
+                mInterval = WIFI_RESCAN_INTERVAL_MS;
+            } else {
+                mInterval = Math.min(mInterval * 2, WIFI_RESCAN_MAX_INTERVAL_MS);
+            }
+            if (hasMessages(0)) {
+                removeMessages(0);
+                final long delay = mLastScanTime + mInterval - SystemClock.elapsedRealtime();
+                sendEmptyMessageDelayed(0, Math.max(delay, 0));
+            }
+        }
+
+        int getScanCount() {
+            return mScanCount;
+        }
+
+        int getResultsChangedCount() {
+            return mResultsChangedCount;
+        }
+
         @Override
         public void handleMessage(Message message) {
+            final long now = SystemClock.elapsedRealtime();
+            final long oldest = mScanTimes[mScanTimesStart];
+            if (oldest != 0 && now - oldest < DateUtils.MINUTE_IN_MILLIS) {
+                // Scanned too often lately; wait for the oldest scan to age out.
+                sendEmptyMessageDelayed(0, oldest + DateUtils.MINUTE_IN_MILLIS - now);
+                return;
+            }
+
             if (mWifiManager.startScan()) {
                 mRetry = 0;
+                mScanCount++;
+                mLastScanTime = now;
+                mAwaitingResults = true;
+                mScanTimes[mScanTimesStart] = now;
+                mScanTimesStart = (mScanTimesStart + 1) % mScanTimes.length;
             } else if (++mRetry >= 3) {
                 mRetry = 0;
                 Activity activity = getActivity();
@@ -971,10 +1102,25 @@ public class WifiSettings extends SettingsPreferenceFragment
                 }
                 return;
             }
-            sendEmptyMessageDelayed(0, WIFI_RESCAN_INTERVAL_MS);
+            sendEmptyMessageDelayed(0, mInterval);
         }
     }
 
+    /**
+     * Number of scans this screen asked for since it was created.
+     */
+    /* package */ int getScanCount() {
+        return mScanner.getScanCount();
+    }
+
+    /**
+     * Number of scans since this screen was created whose results changed
+     * the list.
+     */
+    /* package */ int getResultsChangedCount() {
+        return mScanner.getResultsChangedCount();
+    }
+
     /**
      * Renames/replaces "Next" button when appropriate. "Next" button usually exists in
      * Wifi setup screens, not in usual wifi settings screen.
@@ -1052,7 +1198,7 @@ public class WifiSettings extends SettingsPreferenceFragment
             mScanner.resume();
         }
 
-        getPreferenceScreen().removeAll();
+        clearAccessPoints();
     }
 
     /**